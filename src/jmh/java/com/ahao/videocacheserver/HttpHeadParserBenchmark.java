@@ -0,0 +1,131 @@
+package com.ahao.videocacheserver;
+
+import com.ahao.videocacheserver.util.StringUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses a typical player request head and origin response head, with the parsing the proxy did before
+ * {@link HttpHeadParser} ({@code legacy*}) and with the parser itself. Heads are read from memory, so
+ * only the cost of parsing is measured, not the read syscall per byte the old parsing also made on a
+ * socket. Run with {@code gradle jmh}, or {@code gradle jmh -PjmhArgs="-f 1 Request"} for a subset.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpHeadParserBenchmark {
+    private static final byte[] REQUEST = ("GET /video/movie.mp4?RealHostName=cdn.example.com HTTP/1.1\r\n" +
+            "Host: 127.0.0.1:9090\r\n" +
+            "Connection: keep-alive\r\n" +
+            "User-Agent: Mozilla/5.0 (Linux; Android 10) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/86.0 Mobile Safari/537.36\r\n" +
+            "Accept: */*\r\n" +
+            "Accept-Encoding: identity;q=1, *;q=0\r\n" +
+            "Accept-Language: en-US,en;q=0.9\r\n" +
+            "Range: bytes=1048576-\r\n" +
+            "Referer: http://www.example.com/watch\r\n" +
+            "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final byte[] RESPONSE = ("HTTP/1.1 206 Partial Content\r\n" +
+            "Server: nginx\r\n" +
+            "Date: Sat, 03 Oct 2020 07:46:57 GMT\r\n" +
+            "Content-Type: video/mp4\r\n" +
+            "Content-Length: 103809024\r\n" +
+            "Connection: keep-alive\r\n" +
+            "Last-Modified: Fri, 02 Oct 2020 12:00:00 GMT\r\n" +
+            "ETag: \"5f7716c0-6300000\"\r\n" +
+            "Accept-Ranges: bytes\r\n" +
+            "Content-Range: bytes 1048576-104857599/104857600\r\n" +
+            "Cache-Control: max-age=86400\r\n" +
+            "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    @Benchmark
+    public Map<String, String> legacyRequest() {
+        return legacyParse(new ByteArrayInputStream(REQUEST));
+    }
+
+    @Benchmark
+    public HttpRequest parseRequestFromStream() {
+        return HttpRequest.parse(new ByteArrayInputStream(REQUEST));
+    }
+
+    @Benchmark
+    public HttpRequest parseRequestFromBytes() {
+        return HttpRequest.parse(REQUEST, 0, REQUEST.length);
+    }
+
+    @Benchmark
+    public Map<String, String> legacyResponse() {
+        return legacyParse(new ByteArrayInputStream(RESPONSE));
+    }
+
+    @Benchmark
+    public HttpResponse parseResponseFromStream() {
+        return HttpResponse.parse(new ByteArrayInputStream(RESPONSE));
+    }
+
+    @Benchmark
+    public HttpResponse parseResponseFromBytes() {
+        return HttpResponse.parse(RESPONSE, 0, RESPONSE.length);
+    }
+
+    /**
+     * The head parsing of {@code HttpRequest.parse} and {@code HttpResponse.parse} before
+     * {@link HttpHeadParser}: one read per byte into a StringBuilder, and a regex, a split and
+     * {@link StringUtil#trimLR} per line. The start line goes in the map under an empty name.
+     */
+    private static Map<String, String> legacyParse(InputStream inputStream) {
+        Map<String, String> headers = new HashMap<>();
+        StringBuilder sb = new StringBuilder();
+        boolean isFirstLine = true;
+        try {
+            while (true) {
+                int charRead = inputStream.read();
+                if (charRead == -1) {
+                    break;
+                }
+                sb.append((char) charRead);
+                if (sb.charAt(sb.length() - 1) == '\n') {
+                    if (sb.length() <= 2) {
+                        sb.delete(0, sb.length());
+                        break;
+                    } else {
+                        String headLine = sb.toString().replaceAll("\\r\\n", "");
+                        if (isFirstLine) {
+                            isFirstLine = false;
+                            String[] s = headLine.split(" ");
+                            if (s.length >= 2) {
+                                headers.put("", StringUtil.trimLR(s[0]) + " " + StringUtil.trimLR(s[1]));
+                            }
+                        } else {
+                            String[] split = headLine.split(":");
+                            String key = StringUtil.trimLR(split[0]);
+                            String value = StringUtil.trimLR(headLine.substring(headLine.indexOf(key) + key.length() + 1));
+                            headers.put(key, value);
+                        }
+                        sb.delete(0, sb.length());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return headers;
+    }
+}
@@ -0,0 +1,177 @@
+package com.ahao.videocacheserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Parses the head of an HTTP/1.1 message, the start line and the headers up to the empty line, straight
+ * from bytes. Lines longer than {@link #MAX_LINE_LENGTH} or more than {@link #MAX_HEADER_COUNT} headers
+ * fail the parse. An instance keeps its line buffer between messages and is not thread safe, use
+ * {@link #get()} for the one of the current thread.
+ */
+public class HttpHeadParser {
+    public static final int MAX_LINE_LENGTH = 8 * 1024;
+    public static final int MAX_HEADER_COUNT = 100;
+
+    private static final ThreadLocal<HttpHeadParser> PARSERS = new ThreadLocal<HttpHeadParser>() {
+        @Override
+        protected HttpHeadParser initialValue() {
+            return new HttpHeadParser();
+        }
+    };
+
+    private final byte[] line = new byte[MAX_LINE_LENGTH];
+    private boolean isStartLine;
+    private int headerCount;
+    private String lastHeaderName;
+
+    public static HttpHeadParser get() {
+        return PARSERS.get();
+    }
+
+    /**
+     * Header maps of parsed messages look names up ignoring case, as HTTP header names are.
+     */
+    public static Map<String, String> newHeaders() {
+        return new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    }
+
+    /**
+     * Reads one message head from {@code inputStream}, reading nothing past its empty line. The start
+     * line is split into {@code startLine}, a missing third part is left null.
+     *
+     * @return false if the stream ended before a start line
+     */
+    public boolean parse(InputStream inputStream, String[] startLine, Map<String, String> headers) throws IOException {
+        reset();
+        while (true) {
+            int length = 0;
+            int b;
+            while ((b = inputStream.read()) != '\n') {
+                if (b == -1) {
+                    if (isStartLine && length == 0) {
+                        return false;
+                    }
+                    throw new IOException("unexpected end of http head");
+                }
+                if (length == MAX_LINE_LENGTH) {
+                    throw new IOException("http head line is longer than " + MAX_LINE_LENGTH);
+                }
+                line[length++] = (byte) b;
+            }
+            if (!onLine(line, 0, length, startLine, headers)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Parses a message head held in {@code head}, such as one already read up to its empty line.
+     *
+     * @return false if there was no start line
+     */
+    public boolean parse(byte[] head, int offset, int length, String[] startLine, Map<String, String> headers) throws IOException {
+        reset();
+        int end = offset + length;
+        int lineStart = offset;
+        for (int i = offset; i < end; i++) {
+            if (head[i] != '\n') {
+                continue;
+            }
+            if (i - lineStart > MAX_LINE_LENGTH) {
+                throw new IOException("http head line is longer than " + MAX_LINE_LENGTH);
+            }
+            if (!onLine(head, lineStart, i, startLine, headers)) {
+                return true;
+            }
+            lineStart = i + 1;
+        }
+        if (isStartLine) {
+            return false;
+        }
+        throw new IOException("unexpected end of http head");
+    }
+
+    private void reset() {
+        isStartLine = true;
+        headerCount = 0;
+        lastHeaderName = null;
+    }
+
+    /**
+     * Handles one line without its LF, returns false at the empty line that ends the head.
+     */
+    private boolean onLine(byte[] b, int start, int end, String[] startLine, Map<String, String> headers) throws IOException {
+        if (end > start && b[end - 1] == '\r') {
+            end--;
+        }
+        if (isStartLine) {
+            if (end > start) {
+                parseStartLine(b, start, end, startLine);
+                isStartLine = false;
+            }
+            return true;
+        }
+        if (end == start) {
+            return false;
+        }
+        if ((b[start] == ' ' || b[start] == '\t') && lastHeaderName != null) {
+            headers.put(lastHeaderName, headers.get(lastHeaderName) + " " + string(b, start, end));
+            return true;
+        }
+        if (++headerCount > MAX_HEADER_COUNT) {
+            throw new IOException("http head has more than " + MAX_HEADER_COUNT + " headers");
+        }
+        int colon = indexOf(b, start, end, (byte) ':');
+        if (colon <= start) {
+            throw new IOException("malformed http header line: " + string(b, start, end));
+        }
+        lastHeaderName = string(b, start, colon);
+        headers.put(lastHeaderName, string(b, colon + 1, end));
+        return true;
+    }
+
+    private static void parseStartLine(byte[] b, int start, int end, String[] startLine) {
+        startLine[0] = null;
+        startLine[1] = null;
+        startLine[2] = null;
+        int first = indexOf(b, start, end, (byte) ' ');
+        if (first == -1) {
+            startLine[0] = string(b, start, end);
+            return;
+        }
+        startLine[0] = string(b, start, first);
+        int second = indexOf(b, first + 1, end, (byte) ' ');
+        if (second == -1) {
+            startLine[1] = string(b, first + 1, end);
+            return;
+        }
+        startLine[1] = string(b, first + 1, second);
+        startLine[2] = string(b, second + 1, end);
+    }
+
+    private static int indexOf(byte[] b, int start, int end, byte target) {
+        for (int i = start; i < end; i++) {
+            if (b[i] == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes {@code b[start, end)} as ISO-8859-1 without surrounding whitespace.
+     */
+    private static String string(byte[] b, int start, int end) {
+        while (start < end && (b[start] == ' ' || b[start] == '\t')) {
+            start++;
+        }
+        while (end > start && (b[end - 1] == ' ' || b[end - 1] == '\t')) {
+            end--;
+        }
+        return new String(b, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -1,63 +1,57 @@
 package com.ahao.videocacheserver;
 
-import com.ahao.videocacheserver.util.StringUtil;
 import com.ahao.videocacheserver.util.Constant;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
 import java.util.Map;
 
 public class HttpRequest implements Cloneable {
     private String method;
     private String url;
     private String protocol;
-    private Map<String, String> headers = new HashMap<>();
+    private Map<String, String> headers = HttpHeadParser.newHeaders();
 
 
     public static HttpRequest parse(InputStream inputStream) {
         HttpRequest request = new HttpRequest();
-
-        StringBuilder sb = new StringBuilder();
-        boolean isFirstLine = true;
+        String[] startLine = new String[3];
         try {
-            while (true) {
-                int charRead = inputStream.read();
-                if (charRead == -1) {
-                    break;
-                }
-                sb.append((char) charRead);
-                if (sb.charAt(sb.length() - 1) == '\n') {
-                    if (sb.length() <= 2) {
-                        sb.delete(0, sb.length());
-                        break;
-                    } else {
-                        String headLine = sb.toString().replaceAll("\\r\\n", "");
-                        if (isFirstLine) {
-                            isFirstLine = false;
-                            String[] s = headLine.split(" ");
-                            if (s.length == 3) {
-                                request.setMethod(StringUtil.trimLR(s[0]));
-                                request.setUrl(StringUtil.trimLR(s[1]));
-                                request.setProtocol(StringUtil.trimLR(s[2]));
-                            }
-                        } else {
-                            String[] split = headLine.split(":");
-                            String key = StringUtil.trimLR(split[0]);
-                            String value = StringUtil.trimLR(headLine.substring(headLine.indexOf(key) + key.length() + 1));
-                            request.getHeaders().put(key, value);
-                        }
-                        sb.delete(0, sb.length());
-
-                    }
-                }
+            if (HttpHeadParser.get().parse(inputStream, startLine, request.getHeaders())) {
+                request.setStartLine(startLine);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            request.getHeaders().clear();
+        }
+        return request;
+    }
 
+    /**
+     * Parses a request head already read into {@code head}. A malformed head leaves the method null.
+     */
+    public static HttpRequest parse(byte[] head, int offset, int length) {
+        HttpRequest request = new HttpRequest();
+        String[] startLine = new String[3];
+        try {
+            if (HttpHeadParser.get().parse(head, offset, length, startLine, request.getHeaders())) {
+                request.setStartLine(startLine);
             }
-        } catch (Exception e) {
+        } catch (IOException e) {
             e.printStackTrace();
+            request.getHeaders().clear();
         }
         return request;
     }
 
+    private void setStartLine(String[] startLine) {
+        if (startLine[2] != null) {
+            setMethod(startLine[0]);
+            setUrl(startLine[1]);
+            setProtocol(startLine[2]);
+        }
+    }
+
     public String getMethod() {
         return method;
     }
@@ -117,11 +111,9 @@ public class HttpRequest implements Cloneable {
     public Object clone() throws CloneNotSupportedException {
         HttpRequest request = (HttpRequest) super.clone();
         Map<String, String> headers = getHeaders();
-        HashMap<String, String> cloneHashMap = new HashMap<>();
-        for (Map.Entry<String, String> e : headers.entrySet()) {
-            cloneHashMap.put(e.getKey(), e.getValue());
-        }
-        request.setHeaders(cloneHashMap);
+        Map<String, String> cloneHeaders = HttpHeadParser.newHeaders();
+        cloneHeaders.putAll(headers);
+        request.setHeaders(cloneHeaders);
         return request;
     }
 
@@ -1,70 +1,67 @@
 package com.ahao.videocacheserver;
 
 import com.ahao.videocacheserver.util.Constant;
-import com.ahao.videocacheserver.util.StringUtil;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
-import java.util.HashMap;
 import java.util.Map;
 
 public class HttpResponse {
     private int statusCode;
     private String statusString;
     private String protocol;
-    private Map<String, String> headers = new HashMap<>();
+    private Map<String, String> headers = HttpHeadParser.newHeaders();
     private InputStream content;
 
     private Socket socket;
 
+    /**
+     * Parses a response head from {@code inputStream}, which becomes the content. A malformed head
+     * leaves the status code 0.
+     */
     public static HttpResponse parse(InputStream inputStream) {
         HttpResponse response = new HttpResponse();
         response.setContent(inputStream);
-
-        StringBuilder sb = new StringBuilder();
-        boolean isFirstLine = true;
+        String[] startLine = new String[3];
         try {
-            while (true) {
-                int charRead = inputStream.read();
-                if (charRead == -1) {
-                    break;
-                }
-                sb.append((char) charRead);
-                if (sb.charAt(sb.length() - 1) == '\n') {
-                    if (sb.length() <= 2) {
-                        sb.delete(0, sb.length());
-                        break;
-                    } else {
-                        String headLine = sb.toString().replaceAll("\\r\\n", "");
-                        if (isFirstLine) {
-                            isFirstLine = false;
-                            String[] s = headLine.split(" ");
-                            if (s.length >= 2) {
-                                response.setProtocol(StringUtil.trimLR(s[0]));
-                                response.setStatusCode(Integer.parseInt(StringUtil.trimLR(s[1])));
-                                String statusString = headLine.substring(headLine.indexOf(s[1]) + s[1].length() + 1);
-                                response.setStatusString(StringUtil.trimLR(statusString));
-                            }
-                        } else {
-                            String[] split = headLine.split(":");
-                            String key = StringUtil.trimLR(split[0].trim());
-                            String value = StringUtil.trimLR(headLine.substring(headLine.indexOf(key) + key.length() + 1));
-                            response.getHeaders().put(key, value);
-
-                        }
-                        sb.delete(0, sb.length());
-
-                    }
-                }
-
+            if (HttpHeadParser.get().parse(inputStream, startLine, response.getHeaders())) {
+                response.setStartLine(startLine);
             }
-        } catch (Exception e) {
+        } catch (IOException e) {
             e.printStackTrace();
+            response.getHeaders().clear();
         }
+        return response;
+    }
 
+    public static HttpResponse parse(byte[] head, int offset, int length) {
+        HttpResponse response = new HttpResponse();
+        String[] startLine = new String[3];
+        try {
+            if (HttpHeadParser.get().parse(head, offset, length, startLine, response.getHeaders())) {
+                response.setStartLine(startLine);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            response.getHeaders().clear();
+        }
         return response;
     }
 
+    private void setStartLine(String[] startLine) throws IOException {
+        if (startLine[1] == null) {
+            throw new IOException("malformed status line: " + startLine[0]);
+        }
+        try {
+            setStatusCode(Integer.parseInt(startLine[1]));
+        } catch (NumberFormatException e) {
+            throw new IOException("malformed status code: " + startLine[1]);
+        }
+        setProtocol(startLine[0]);
+        setStatusString(startLine[2] == null ? "" : startLine[2]);
+    }
+
     public int getStatusCode() {
         return statusCode;
     }
@@ -113,17 +110,17 @@ public class HttpResponse {
         getHeaders().put(Constant.CONTENT_LENGTH, String.valueOf(contentLength));
     }
 
-    public int getTotalLength() {
+    public long getTotalLength() {
         try {
             String range = getHeaders().get(Constant.CONTENT_RANGE);
             if (range == null) {
-                return Integer.parseInt(getHeaders().get(Constant.CONTENT_LENGTH));
+                return Long.parseLong(getHeaders().get(Constant.CONTENT_LENGTH));
             }
             int i = range.indexOf("/");
             if (i == -1) {
                 return -1;
             }
-            return Integer.parseInt(range.substring(i + 1));
+            return Long.parseLong(range.substring(i + 1));
         } catch (Exception e) {
             return -1;
         }
@@ -154,6 +151,7 @@ public class HttpResponse {
         response.setStatusString("Temporary Redirect");
         response.setProtocol(Constant.HTTP_VERSION_1_1);
         response.getHeaders().put(Constant.LOCATION, url);
+        response.getHeaders().put(Constant.CONTENT_LENGTH, "0");
         return response;
     }
 
@@ -162,8 +160,7 @@ public class HttpResponse {
         response.setProtocol(Constant.HTTP_VERSION_1_1);
         response.setStatusCode(404);
         response.setStatusString("NoProxyHost");
-        HashMap<String, String> headers = new HashMap<>();
-        headers.put(Constant.CONNECTION, "close");
+        response.getHeaders().put(Constant.CONTENT_LENGTH, "0");
         return response;
     }
 
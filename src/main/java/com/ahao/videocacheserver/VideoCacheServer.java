@@ -1,21 +1,35 @@
 package com.ahao.videocacheserver;
 
 import com.ahao.videocacheserver.interceptor.*;
+import com.ahao.videocacheserver.nio.NioProxyServer;
 import com.ahao.videocacheserver.util.CustomURLEncode;
+import com.ahao.videocacheserver.cache.CacheStats;
+import com.ahao.videocacheserver.cache.CancelPolicy;
+import com.ahao.videocacheserver.cache.EvictionPolicy;
 import com.ahao.videocacheserver.cache.DiskLruCache;
+import com.ahao.videocacheserver.cache.FilesDataStream;
+import com.ahao.videocacheserver.cache.PlaylistPrefetcher;
+import com.ahao.videocacheserver.cache.PlaylistStats;
+import com.ahao.videocacheserver.cache.StorageFormat;
 import com.ahao.videocacheserver.util.CloseUtil;
 import com.ahao.videocacheserver.util.Constant;
+import com.ahao.videocacheserver.util.RequestUtil;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -27,12 +41,75 @@ public class VideoCacheServer {
     private static final Logger logger = Logger.getLogger("VideoCacheServer");
     private DiskLruCache diskCache;
     private ExecutorService singleService = Executors.newSingleThreadExecutor();
-    private ExecutorService pool = Executors.newFixedThreadPool(20);
+    // a thread per client connection, a keep-alive client waiting for its next request holds one
+    private ExecutorService pool = Executors.newCachedThreadPool();
     private boolean isRunning = false;
     private int curPort;
+    private final Mode mode;
+    private NioProxyServer nioServer;
 
-    public VideoCacheServer(String cachePath, int maxCacheSize) {
-        diskCache = new DiskLruCache(cachePath, maxCacheSize, 1024 * 1024 * 20);
+    public enum Mode {
+        BLOCKING, NIO
+    }
+
+    public VideoCacheServer(String cachePath, long maxCacheSize) {
+        this(cachePath, maxCacheSize, Mode.BLOCKING);
+    }
+
+    public VideoCacheServer(String cachePath, long maxCacheSize, Mode mode) {
+        this(cachePath, maxCacheSize, mode, StorageFormat.SLICE_FILES);
+    }
+
+    public VideoCacheServer(String cachePath, long maxCacheSize, Mode mode, StorageFormat storageFormat) {
+        diskCache = new DiskLruCache(cachePath, maxCacheSize, 1024 * 1024 * 20, storageFormat);
+        this.mode = mode;
+    }
+
+    public void setDownloadBudget(long downloadBudget) {
+        diskCache.setDownloadBudget(downloadBudget);
+    }
+
+    public void setCancelPolicy(CancelPolicy cancelPolicy) {
+        diskCache.setCancelPolicy(cancelPolicy);
+    }
+
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        diskCache.setEvictionPolicy(evictionPolicy);
+    }
+
+    /**
+     * Bytes of direct memory for the hottest slices, 0 (the default) keeps every hit on disk.
+     */
+    public void setMemoryCacheSize(long maxSize) {
+        diskCache.setMemoryCacheSize(maxSize);
+    }
+
+    /**
+     * How many slices to read ahead of a viewer playing a video in order, 0 (the default) waits for
+     * the player to ask.
+     */
+    public void setReadAheadSlices(int maxSlices) {
+        diskCache.setReadAheadSlices(maxSlices);
+    }
+
+    /**
+     * How many segments to warm after each segment of an HLS playlist the player asks for, 0 (the
+     * default) leaves them until they are asked for.
+     */
+    public void setPlaylistPrefetchSegments(int segments) {
+        diskCache.setPlaylistPrefetchSegments(segments);
+    }
+
+    /**
+     * The prefetch counters of each HLS playlist, by its host and path, empty while the prefetch is off.
+     */
+    public Map<String, PlaylistStats> getPlaylistStats() {
+        PlaylistPrefetcher playlistPrefetcher = diskCache.getPlaylistPrefetcher();
+        return playlistPrefetcher == null ? Collections.<String, PlaylistStats>emptyMap() : playlistPrefetcher.getStats();
+    }
+
+    public CacheStats getCacheStats() {
+        return diskCache.getStats();
     }
 
     public int start() {
@@ -40,15 +117,24 @@ public class VideoCacheServer {
             return curPort;
         }
         curPort = new Random().nextInt(65535);
+        if (mode == Mode.NIO) {
+            return startNio();
+        }
         try {
-            final ServerSocket server = new ServerSocket(curPort);
+            final ServerSocketChannel server = ServerSocketChannel.open();
+            try {
+                server.socket().bind(new InetSocketAddress(curPort));
+            } catch (IOException e) {
+                CloseUtil.close(server);
+                throw e;
+            }
             isRunning = true;
             singleService.submit(new Runnable() {
                 @Override
                 public void run() {
                     while (isRunning) {
                         try {
-                            Socket connection = server.accept();
+                            Socket connection = server.accept().socket();
                             connection.setKeepAlive(true);
                             pool.submit(new ProxyHandler(connection));
                         } catch (IOException ex) {
@@ -70,6 +156,34 @@ public class VideoCacheServer {
         }
     }
 
+    private int startNio() {
+        NioProxyServer server = new NioProxyServer(new NioProxyServer.RequestHandler() {
+            @Override
+            public HttpResponse handle(HttpRequest request) {
+                return getResponseWithInterceptorChain(request);
+            }
+        }, Constant.NIO_LOOP_COUNT, Constant.NIO_WORKER_COUNT);
+        try {
+            server.start(curPort);
+            nioServer = server;
+            isRunning = true;
+            return curPort;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return start();
+        }
+    }
+
+    private HttpResponse getResponseWithInterceptorChain(HttpRequest realRequest) {
+        List<Interceptor> interceptors = new ArrayList<>();
+        interceptors.add(new VideoTypeInterceptor(diskCache.getPlaylistPrefetcher()));
+        interceptors.add(new HostFilterInterceptor(curPort));
+        interceptors.add(new CacheInterceptor(diskCache));
+        interceptors.add(new ConnectInterceptor());
+        InterceptorChain interceptorChain = new InterceptorChain(interceptors, realRequest, 0);
+        return interceptorChain.proceed(realRequest);
+    }
+
     public static String getProxyUrl(String url, String proxyAddr, int port) {
         try {
             URL u = new URL(url);
@@ -122,6 +236,10 @@ public class VideoCacheServer {
 
     public void destory() {
         isRunning = false;
+        if (nioServer != null) {
+            nioServer.stop();
+            nioServer = null;
+        }
     }
 
     public class ProxyHandler implements Runnable {
@@ -132,15 +250,28 @@ public class VideoCacheServer {
             this.realClientSocket = realClientSocket;
         }
 
+        /**
+         * Serves requests one after another until the client asks to close, a response cannot be
+         * framed for reuse, or no new request arrives within the idle timeout. Pipelined requests wait
+         * in the input buffer until the response before them is written.
+         */
         @Override
         public void run() {
             try {
+                realClientSocket.setSoTimeout(Constant.CLIENT_IDLE_TIMEOUT_MILLIS);
                 BufferedOutputStream outputStream = new BufferedOutputStream(realClientSocket.getOutputStream());
                 BufferedInputStream inputStream = new BufferedInputStream(realClientSocket.getInputStream());
-                HttpRequest realRequest = HttpRequest.parse(inputStream);
-                HttpResponse response = getResponseWithInterceptorChain(realRequest);
-                writeResponseAndClose(response, outputStream);
-
+                boolean isKeepAlive = true;
+                while (isKeepAlive && awaitRequest(inputStream)) {
+                    HttpRequest realRequest = HttpRequest.parse(inputStream);
+                    if (realRequest.getMethod() == null) {
+                        break;
+                    }
+                    isKeepAlive = RequestUtil.isKeepAlive(realRequest);
+                    boolean isHead = Constant.METHOD_HEAD.equalsIgnoreCase(realRequest.getMethod());
+                    HttpResponse response = getResponseWithInterceptorChain(realRequest);
+                    isKeepAlive = writeResponse(response, outputStream, isKeepAlive, isHead);
+                }
             } catch (Exception e) {
                 if (Constant.enableLog) {
                     logger.log(Level.SEVERE, "error proxy ", e);
@@ -150,39 +281,63 @@ public class VideoCacheServer {
             }
         }
 
-        private HttpResponse getResponseWithInterceptorChain(HttpRequest realRequest) {
-            List<Interceptor> interceptors = new ArrayList<>();
-            interceptors.add(new VideoTypeInterceptor());
-            interceptors.add(new HostFilterInterceptor(curPort));
-            interceptors.add(new CacheInterceptor(diskCache));
-            interceptors.add(new ConnectInterceptor());
-            InterceptorChain interceptorChain = new InterceptorChain(interceptors, realRequest, 0);
-            return interceptorChain.proceed(realRequest);
+        private boolean awaitRequest(BufferedInputStream inputStream) throws IOException {
+            inputStream.mark(1);
+            try {
+                if (inputStream.read() == -1) {
+                    return false;
+                }
+            } catch (SocketTimeoutException e) {
+                return false;
+            }
+            inputStream.reset();
+            return true;
         }
 
-        private void writeResponseAndClose(HttpResponse response, BufferedOutputStream outputStream) {
+        /**
+         * Writes the response and returns whether the connection can serve another request, which
+         * needs the whole declared body to have been sent.
+         */
+        private boolean writeResponse(HttpResponse response, BufferedOutputStream outputStream, boolean isKeepAlive, boolean isHead) {
+            isKeepAlive = RequestUtil.prepareKeepAlive(response, isKeepAlive);
+            long contentLength = RequestUtil.getContentLength(response);
+            long written = 0;
             try {
                 outputStream.write(response.getHeadText().getBytes(ProxyCharset.CUR_CHARSET));
 
-                InputStream content = response.getContent();
-                if (content != null) {
+                InputStream content = isHead ? null : response.getContent();
+                SocketChannel channel = realClientSocket.getChannel();
+                if (content instanceof FilesDataStream && ((FilesDataStream) content).isTransferable() && channel != null) {
+                    outputStream.flush();
+                    FilesDataStream filesDataStream = (FilesDataStream) content;
+                    while (!filesDataStream.isFinished()) {
+                        long sent = filesDataStream.transferTo(channel);
+                        if (sent <= 0) {
+                            break;
+                        }
+                        written += sent;
+                    }
+                } else if (content != null) {
                     BufferedInputStream bufferedInputStream = new BufferedInputStream(content);
                     byte[] buf = new byte[1024 * 512];
                     int readLength;
 
                     while ((readLength = bufferedInputStream.read(buf, 0, buf.length)) != -1) {
                         outputStream.write(buf, 0, readLength);
+                        written += readLength;
+                        if (bufferedInputStream.available() <= 0) {
+                            outputStream.flush();
+                        }
                     }
-                    outputStream.flush();
-                } else {
-                    outputStream.write("\r\n".getBytes(ProxyCharset.CUR_CHARSET));
                 }
+                outputStream.flush();
+                return isKeepAlive && (isHead || written == contentLength);
             } catch (IOException e) {
                 if (Constant.enableLog) {
                     logger.log(Level.SEVERE, "response to real server error ", e);
                 }
+                return false;
             } finally {
-                CloseUtil.close(outputStream);
                 CloseUtil.close(response.getContent());
                 CloseUtil.close(response.getSocket());
             }
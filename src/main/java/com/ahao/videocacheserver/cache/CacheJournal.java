@@ -0,0 +1,496 @@
+package com.ahao.videocacheserver.cache;
+
+import com.ahao.videocacheserver.util.CloseUtil;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The slice files in the cache and their total size, kept in memory and logged to an append-only
+ * journal so the cache never walks its directory tree to learn them. Each line of the journal is one
+ * operation on a slice file, named by its path under the content root:
+ * <pre>
+ *     DIRTY host/url/0_5242879          a download of the file started
+ *     ADD host/url/0_5242879 5242880    the file was completed with that length
+ *     REMOVE host/url/0_5242879         the file was deleted, or its download failed
+ *     READ host/url/0_5242879           the file was read
+ * </pre>
+ * Opening the cache replays the journal, or scans the content directory once if there is no usable
+ * journal. Once enough lines are redundant the journal is rewritten in the background with one line
+ * per file.
+ * <p>
+ * Which files to evict is up to an {@link EvictionPolicy}, told about every change. Lookups are only
+ * queued when they happen, they are applied and logged in batches by a background thread, or before
+ * the policy is asked for victims.
+ */
+class CacheJournal {
+    static final String MAGIC = "com.ahao.videocacheserver.journal";
+    static final String VERSION = "1";
+
+    private static final String DIRTY = "DIRTY";
+    private static final String ADD = "ADD";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+    private static final int READ_BATCH_SIZE = 256;
+    private static final long READ_FLUSH_MILLIS = 10 * 1000;
+
+    private final File journalFile;
+    private final File journalFileTmp;
+    private final File journalFileBackup;
+
+    // access ordered, so a rewritten journal lists the files least recently used first
+    private final Map<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> dirty = new HashSet<>();
+    private long totalSize;
+    private int redundantOpCount;
+    private Writer writer;
+    private boolean isCompactScheduled;
+    private boolean isClosed;
+
+    private final int cacheSlice;
+    private EvictionPolicy policy;
+
+    private final ConcurrentLinkedQueue<Lookup> pendingReads = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingReadCount = new AtomicInteger();
+
+    private final ScheduledExecutorService background = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "CacheJournal-writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Runnable readDrainer = new Runnable() {
+        @Override
+        public void run() {
+            applyReads();
+        }
+    };
+
+    CacheJournal(File directory, int cacheSlice, EvictionPolicy policy) {
+        this.cacheSlice = cacheSlice;
+        this.policy = policy;
+        this.journalFile = new File(directory, "journal");
+        this.journalFileTmp = new File(directory, "journal.tmp");
+        this.journalFileBackup = new File(directory, "journal.bkp");
+        background.scheduleWithFixedDelay(readDrainer, READ_FLUSH_MILLIS, READ_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Loads the slice files under {@code contentRoot} into memory and {@code index}, from the journal
+     * when there is one. Temporary files of downloads that never finished are deleted.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    synchronized void open(File contentRoot, SliceIndex index) {
+        CloseUtil.close(writer);
+        writer = null;
+        entries.clear();
+        dirty.clear();
+        pendingReads.clear();
+        pendingReadCount.set(0);
+        totalSize = 0;
+        redundantOpCount = 0;
+
+        if (journalFileBackup.exists()) {
+            if (journalFile.exists()) {
+                journalFileBackup.delete();
+            } else {
+                journalFileBackup.renameTo(journalFile);
+            }
+        }
+        boolean isReplayed = false;
+        boolean isComplete = false;
+        if (journalFile.exists()) {
+            try {
+                isComplete = replay();
+                isReplayed = true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                entries.clear();
+                dirty.clear();
+                redundantOpCount = 0;
+            }
+        }
+        if (isReplayed) {
+            for (String path : dirty) {
+                new File(contentRoot, path + CacheSlice.TEMP_SUFFIX).delete();
+                new File(contentRoot, path + SliceCompactor.TEMP_SUFFIX).delete();
+            }
+            dirty.clear();
+        } else {
+            scan(contentRoot);
+        }
+
+        index.clear();
+        policy.clear();
+        for (Map.Entry<String, Long> entry : entries.entrySet()) {
+            totalSize += entry.getValue();
+            addToIndex(index, entry.getKey());
+            policy.onAdd(entry.getKey(), getSlice(entry.getKey()));
+        }
+        try {
+            if (isComplete) {
+                writer = newWriter();
+            } else {
+                rewrite();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Logs the lookups not logged yet and closes the journal, its writer thread stops. Operations
+     * after this only change the state in memory.
+     */
+    synchronized void close() {
+        applyReads();
+        CloseUtil.close(writer);
+        writer = null;
+        isClosed = true;
+        background.shutdown();
+    }
+
+    synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * Hands the files over to {@code policy}, least recently used first.
+     */
+    synchronized void setPolicy(EvictionPolicy policy) {
+        applyReads();
+        this.policy = policy;
+        policy.clear();
+        for (String path : entries.keySet()) {
+            policy.onAdd(path, getSlice(path));
+        }
+    }
+
+    /**
+     * Paths of up to {@code count} files the policy would evict, the first one first.
+     */
+    synchronized List<String> getVictims(int count) {
+        applyReads();
+        return policy.getVictims(count);
+    }
+
+    synchronized boolean admit(String url, int slice, String victim) {
+        return policy.admit(url, slice, victim);
+    }
+
+    synchronized void onDirty(String path) {
+        dirty.add(path);
+        append(DIRTY + " " + path, true);
+    }
+
+    synchronized void onAdded(String path, long length) {
+        // lookups queued before the file was added must reach the policy first
+        applyReads();
+        dirty.remove(path);
+        Long old = entries.put(path, length);
+        if (old != null) {
+            totalSize -= old;
+            redundantOpCount++;
+        }
+        totalSize += length;
+        policy.onAdd(path, getSlice(path));
+        append(ADD + " " + path + " " + length, true);
+    }
+
+    synchronized void onRemoved(String path) {
+        boolean isDirty = dirty.remove(path);
+        Long old = entries.remove(path);
+        if (old == null && !isDirty) {
+            return;
+        }
+        if (old != null) {
+            totalSize -= old;
+            policy.onRemove(path);
+        }
+        redundantOpCount++;
+        append(REMOVE + " " + path, true);
+    }
+
+    /**
+     * Queues a lookup of a slice of {@code url} without taking the journal lock or touching the disk.
+     *
+     * @param path the file that was read for it, null on a miss
+     */
+    void onLookup(String url, int slice, String path) {
+        pendingReads.add(new Lookup(url, slice, path));
+        if (pendingReadCount.incrementAndGet() == READ_BATCH_SIZE) {
+            try {
+                background.execute(readDrainer);
+            } catch (RejectedExecutionException ignored) {
+                // closed, the cache moved to another journal
+            }
+        }
+    }
+
+    /**
+     * Passes the lookups since the last batch on to the policy and logs the reads in one write.
+     */
+    private synchronized void applyReads() {
+        boolean isRead = false;
+        Lookup lookup;
+        while ((lookup = pendingReads.poll()) != null) {
+            pendingReadCount.decrementAndGet();
+            policy.onRequest(lookup.url, lookup.slice);
+            if (lookup.path == null || entries.get(lookup.path) == null) {
+                continue;
+            }
+            policy.onAccess(lookup.path, lookup.slice);
+            redundantOpCount++;
+            append(READ + " " + lookup.path, false);
+            isRead = true;
+        }
+        if (isRead && writer != null) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void append(String line, boolean isFlush) {
+        if (writer != null) {
+            try {
+                writer.write(line);
+                writer.write('\n');
+                if (isFlush) {
+                    writer.flush();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && redundantOpCount >= entries.size()
+                && !isCompactScheduled && !isClosed) {
+            isCompactScheduled = true;
+            background.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (CacheJournal.this) {
+                        isCompactScheduled = false;
+                        if (isClosed) {
+                            return;
+                        }
+                        try {
+                            rewrite();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Replaces the journal with one holding a line per file, keeping the current one as a backup until
+     * the new one is in place.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void rewrite() throws IOException {
+        CloseUtil.close(writer);
+        writer = null;
+        File parent = journalFile.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        Writer tmpWriter = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(journalFileTmp), StandardCharsets.UTF_8));
+        try {
+            tmpWriter.write(MAGIC + "\n" + VERSION + "\n\n");
+            for (String path : dirty) {
+                tmpWriter.write(DIRTY + " " + path + "\n");
+            }
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                tmpWriter.write(ADD + " " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+        } finally {
+            tmpWriter.close();
+        }
+        if (journalFile.exists()) {
+            journalFileBackup.delete();
+            journalFile.renameTo(journalFileBackup);
+        }
+        if (!journalFileTmp.renameTo(journalFile)) {
+            throw new IOException("cannot rename " + journalFileTmp + " to " + journalFile);
+        }
+        journalFileBackup.delete();
+        redundantOpCount = 0;
+        writer = newWriter();
+    }
+
+    private Writer newWriter() throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(journalFile, true), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Replays the journal into {@link #entries}. A last line without its line feed was cut off by a
+     * crash and is ignored, anything else unexpected fails the replay.
+     *
+     * @return false if the last line was cut off, the journal must be rewritten before appending
+     */
+    private boolean replay() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) journalFile.length());
+        FileInputStream inputStream = new FileInputStream(journalFile);
+        try {
+            byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        } finally {
+            CloseUtil.close(inputStream);
+        }
+        String content = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        String[] lines = content.split("\n", -1);
+        if (lines.length < 3 || !MAGIC.equals(lines[0]) || !VERSION.equals(lines[1]) || !lines[2].isEmpty()) {
+            throw new IOException("unexpected journal header in " + journalFile);
+        }
+        int opCount = 0;
+        // the last element follows the last line feed, it is empty unless a line was cut off
+        for (int i = 3; i < lines.length - 1; i++) {
+            replayLine(lines[i]);
+            opCount++;
+        }
+        redundantOpCount = opCount - entries.size();
+        return lines[lines.length - 1].isEmpty();
+    }
+
+    private void replayLine(String line) throws IOException {
+        int firstSpace = line.indexOf(' ');
+        if (firstSpace == -1) {
+            throw new IOException("unexpected journal line: " + line);
+        }
+        String op = line.substring(0, firstSpace);
+        String path = line.substring(firstSpace + 1);
+        if (ADD.equals(op)) {
+            int lastSpace = path.lastIndexOf(' ');
+            if (lastSpace == -1) {
+                throw new IOException("unexpected journal line: " + line);
+            }
+            long length;
+            try {
+                length = Long.parseLong(path.substring(lastSpace + 1));
+            } catch (NumberFormatException e) {
+                throw new IOException("unexpected journal line: " + line);
+            }
+            path = path.substring(0, lastSpace);
+            dirty.remove(path);
+            entries.put(path, length);
+        } else if (DIRTY.equals(op)) {
+            dirty.add(path);
+        } else if (REMOVE.equals(op)) {
+            dirty.remove(path);
+            entries.remove(path);
+        } else if (READ.equals(op)) {
+            entries.get(path);
+        } else {
+            throw new IOException("unexpected journal line: " + line);
+        }
+    }
+
+    /**
+     * Finds the slice files by walking the content directory, for a cache without a journal. The
+     * ranges of a sparse file are read from the list next to it.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void scan(File contentRoot) {
+        File[] hosts = contentRoot.listFiles();
+        if (hosts == null) {
+            return;
+        }
+        for (File host : hosts) {
+            File[] urlDirs = host.listFiles();
+            if (urlDirs == null) {
+                continue;
+            }
+            for (File urlDir : urlDirs) {
+                File[] files = urlDir.listFiles();
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    if (file.getName().endsWith(CacheSlice.TEMP_SUFFIX) || file.getName().endsWith(SliceCompactor.TEMP_SUFFIX)) {
+                        file.delete();
+                        continue;
+                    }
+                    if (file.getName().equals(SparseFileStore.RANGES_NAME)) {
+                        for (SliceIndex.CachedRange range : SparseFileStore.loadRanges(urlDir)) {
+                            entries.put(getPath(host.getName(), urlDir.getName(), range.getFileName()), range.getLength());
+                        }
+                        continue;
+                    }
+                    SliceIndex.CachedRange range = SliceIndex.CachedRange.parse(file.getName());
+                    if (range != null && file.length() == range.getLength()) {
+                        entries.put(getPath(host.getName(), urlDir.getName(), file.getName()), range.getLength());
+                    }
+                }
+            }
+        }
+    }
+
+    private static void addToIndex(SliceIndex index, String path) {
+        int urlSeparator = path.lastIndexOf('/');
+        int hostSeparator = urlSeparator <= 0 ? -1 : path.lastIndexOf('/', urlSeparator - 1);
+        if (hostSeparator <= 0) {
+            return;
+        }
+        SliceIndex.CachedRange range = SliceIndex.CachedRange.parse(path.substring(urlSeparator + 1));
+        if (range != null) {
+            index.add(path.substring(0, hostSeparator), path.substring(hostSeparator + 1, urlSeparator),
+                    range.start, range.end);
+        }
+    }
+
+    private int getSlice(String path) {
+        SliceIndex.CachedRange range = SliceIndex.CachedRange.parse(path.substring(path.lastIndexOf('/') + 1));
+        return range == null ? 0 : (int) (range.start / cacheSlice);
+    }
+
+    static String getPath(String hostDir, String urlDir, String fileName) {
+        return hostDir + "/" + urlDir + "/" + fileName;
+    }
+
+    private static class Lookup {
+        final String url;
+        final int slice;
+        final String path;
+
+        Lookup(String url, int slice, String path) {
+            this.url = url;
+            this.slice = slice;
+            this.path = path;
+        }
+    }
+}
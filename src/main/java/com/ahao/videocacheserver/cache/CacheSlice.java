@@ -0,0 +1,170 @@
+package com.ahao.videocacheserver.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A slice file that may still be downloading. The writer appends to a temporary file and publishes
+ * how many bytes have landed, readers can stream everything below that watermark before the slice is
+ * complete. A finished slice is renamed to its final {@code start_end} name.
+ * <p>
+ * A slice can also be a range of a larger file, starting at {@code offset}. Such a slice is written in
+ * place, there is no temporary file to rename.
+ */
+public class CacheSlice {
+    public static final String TEMP_SUFFIX = ".download";
+
+    private final File file;
+    private final File tempFile;
+    private final long offset;
+    private final SegmentInfo key;
+    private final long length;
+
+    private ByteBuffer window;
+    private long written;
+    private boolean isComplete;
+    private boolean isFailed;
+
+    public CacheSlice(File file, SegmentInfo key) {
+        this(file, new File(file.getPath() + TEMP_SUFFIX), 0, key, key.getLength());
+    }
+
+    /**
+     * A slice written in place to {@code file}, from {@code offset} on.
+     */
+    public CacheSlice(File file, long offset, SegmentInfo key) {
+        this(file, file, offset, key, key.getLength());
+    }
+
+    private CacheSlice(File file, File tempFile, long offset, SegmentInfo key, long length) {
+        this.file = file;
+        this.tempFile = tempFile;
+        this.offset = offset;
+        this.key = key;
+        this.length = length;
+    }
+
+    public static CacheSlice completed(File file) {
+        return completed(file, 0, file.length(), null);
+    }
+
+    /**
+     * The complete slice of {@code length} bytes at {@code offset} in {@code file}. If its first bytes
+     * are also held in {@code window} readers take them from there and only open the file past its end.
+     */
+    public static CacheSlice completed(File file, long offset, long length, ByteBuffer window) {
+        CacheSlice slice = new CacheSlice(file, file, offset, null, length);
+        slice.written = slice.length;
+        slice.isComplete = true;
+        slice.window = window;
+        return slice;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    File getTempFile() {
+        return tempFile;
+    }
+
+    /**
+     * Where the slice starts in its file.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Whether the slice is a range of a file shared with other slices, written without a rename.
+     */
+    public boolean isInPlace() {
+        return tempFile.equals(file);
+    }
+
+    public SegmentInfo getKey() {
+        return key;
+    }
+
+    /**
+     * The first bytes of the slice in memory, or null. Each call returns its own view.
+     */
+    public ByteBuffer getWindow() {
+        return window == null ? null : window.duplicate();
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public synchronized long getWritten() {
+        return written;
+    }
+
+    public synchronized boolean isComplete() {
+        return isComplete;
+    }
+
+    public synchronized boolean isFailed() {
+        return isFailed;
+    }
+
+    synchronized void onWritten(long count) {
+        written += count;
+        notifyAll();
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    synchronized boolean finish() {
+        if (isInPlace()) {
+            isComplete = written == length;
+            isFailed = !isComplete;
+            notifyAll();
+            return isComplete;
+        }
+        if (written == length) {
+            if (file.exists()) {
+                file.delete();
+            }
+            isComplete = tempFile.renameTo(file);
+        }
+        if (!isComplete) {
+            tempFile.delete();
+            isFailed = true;
+        }
+        notifyAll();
+        return isComplete;
+    }
+
+    /**
+     * Opens the slice for reading, from the temporary file while it is downloading. Taking the lock
+     * keeps the rename in {@link #finish()} from racing with the open.
+     */
+    public synchronized FileInputStream open() throws IOException {
+        if (isFailed) {
+            return null;
+        }
+        return new FileInputStream(isComplete ? file : tempFile);
+    }
+
+    /**
+     * Blocks until bytes past {@code position} are written, returns how many can be read from there.
+     * Returns 0 once the slice is complete at that position, -1 if the download failed.
+     */
+    public synchronized long awaitAvailable(long position) throws IOException {
+        while (written <= position && !isComplete && !isFailed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("wait slice " + file.getName());
+            }
+        }
+        if (written > position) {
+            return written - position;
+        }
+        return isFailed ? -1 : 0;
+    }
+}
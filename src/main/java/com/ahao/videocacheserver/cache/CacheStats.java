@@ -0,0 +1,183 @@
+package com.ahao.videocacheserver.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CacheStats {
+    private final AtomicLong writerWaitMillis = new AtomicLong();
+    private final AtomicLong orphanWriteMillis = new AtomicLong();
+    private final AtomicLong detachedReaders = new AtomicLong();
+    private final AtomicLong abortedDownloads = new AtomicLong();
+    private final AtomicInteger writerQueueDepth = new AtomicInteger();
+    private final AtomicInteger peakWriterQueueDepth = new AtomicInteger();
+    private final AtomicLong compactedFragments = new AtomicLong();
+    private final AtomicLong compactedBytes = new AtomicLong();
+    private final AtomicLong rejectedAdmissions = new AtomicLong();
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong memoryMisses = new AtomicLong();
+    private final AtomicLong memorySize = new AtomicLong();
+    private final AtomicLong prefetchedBytes = new AtomicLong();
+    private final AtomicLong cancelledPrefetches = new AtomicLong();
+
+    void addWriterWaitMillis(long millis) {
+        writerWaitMillis.addAndGet(millis);
+    }
+
+    void addOrphanWriteMillis(long millis) {
+        orphanWriteMillis.addAndGet(millis);
+    }
+
+    void onReaderDetached() {
+        detachedReaders.incrementAndGet();
+    }
+
+    void onDownloadAborted() {
+        abortedDownloads.incrementAndGet();
+    }
+
+    void onCompacted(int fragments, long bytes) {
+        compactedFragments.addAndGet(fragments);
+        compactedBytes.addAndGet(bytes);
+    }
+
+    void onAdmissionRejected() {
+        rejectedAdmissions.incrementAndGet();
+    }
+
+    void onMemoryHit() {
+        memoryHits.incrementAndGet();
+    }
+
+    void onMemoryMiss() {
+        memoryMisses.incrementAndGet();
+    }
+
+    void setMemorySize(long size) {
+        memorySize.set(size);
+    }
+
+    void onPrefetched(long bytes) {
+        prefetchedBytes.addAndGet(bytes);
+    }
+
+    void onPrefetchCancelled() {
+        cancelledPrefetches.incrementAndGet();
+    }
+
+    void onWriterQueueDepth(int depth) {
+        writerQueueDepth.set(depth);
+        int peak;
+        while (depth > (peak = peakWriterQueueDepth.get())) {
+            if (peakWriterQueueDepth.compareAndSet(peak, depth)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Time writer threads spent blocked waiting for slow readers.
+     */
+    public long getWriterWaitMillis() {
+        return writerWaitMillis.get();
+    }
+
+    /**
+     * Time writer threads kept downloading after every reader of the download had gone.
+     */
+    public long getOrphanWriteMillis() {
+        return orphanWriteMillis.get();
+    }
+
+    /**
+     * Readers that went away before reaching the end of their download.
+     */
+    public long getDetachedReaders() {
+        return detachedReaders.get();
+    }
+
+    public long getAbortedDownloads() {
+        return abortedDownloads.get();
+    }
+
+    /**
+     * Downloads waiting for a writer thread or for their host's concurrency limit.
+     */
+    public int getWriterQueueDepth() {
+        return writerQueueDepth.get();
+    }
+
+    public int getPeakWriterQueueDepth() {
+        return peakWriterQueueDepth.get();
+    }
+
+    /**
+     * Slice files replaced by a merged file in the background.
+     */
+    public long getCompactedFragments() {
+        return compactedFragments.get();
+    }
+
+    /**
+     * Bytes the background compaction copied into merged files.
+     */
+    public long getCompactedBytes() {
+        return compactedBytes.get();
+    }
+
+    /**
+     * Slices the eviction policy chose not to cache rather than evict for them.
+     */
+    public long getRejectedAdmissions() {
+        return rejectedAdmissions.get();
+    }
+
+    /**
+     * Cached files found in the memory cache, and those that had to be read from disk while it was on.
+     */
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getMemoryMisses() {
+        return memoryMisses.get();
+    }
+
+    /**
+     * Bytes the memory cache holds off the heap.
+     */
+    public long getMemorySize() {
+        return memorySize.get();
+    }
+
+    /**
+     * Bytes read ahead of sequential viewers, and read-ahead downloads stopped because the viewer
+     * seeked away or left.
+     */
+    public long getPrefetchedBytes() {
+        return prefetchedBytes.get();
+    }
+
+    public long getCancelledPrefetches() {
+        return cancelledPrefetches.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{" +
+                "writerWaitMillis=" + writerWaitMillis +
+                ", orphanWriteMillis=" + orphanWriteMillis +
+                ", detachedReaders=" + detachedReaders +
+                ", abortedDownloads=" + abortedDownloads +
+                ", writerQueueDepth=" + writerQueueDepth +
+                ", peakWriterQueueDepth=" + peakWriterQueueDepth +
+                ", compactedFragments=" + compactedFragments +
+                ", compactedBytes=" + compactedBytes +
+                ", rejectedAdmissions=" + rejectedAdmissions +
+                ", memoryHits=" + memoryHits +
+                ", memoryMisses=" + memoryMisses +
+                ", memorySize=" + memorySize +
+                ", prefetchedBytes=" + prefetchedBytes +
+                ", cancelledPrefetches=" + cancelledPrefetches +
+                '}';
+    }
+}
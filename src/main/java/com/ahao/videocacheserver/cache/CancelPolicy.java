@@ -0,0 +1,15 @@
+package com.ahao.videocacheserver.cache;
+
+/**
+ * What happens to a download when its last reader goes away before it is finished.
+ */
+public enum CancelPolicy {
+    /**
+     * Keep downloading so the cache is populated for the next seek or replay.
+     */
+    DETACH,
+    /**
+     * Stop the download, close the origin connection and release the writer thread.
+     */
+    ABORT
+}
@@ -1,17 +1,26 @@
 package com.ahao.videocacheserver.cache;
 
-import java.io.File;
 import java.util.List;
 
 public class CommonListFile implements ListFile {
-    private List<File> files;
+    private List<CacheSlice> files;
+    private final boolean isComplete;
 
-    public CommonListFile(List<File> files) {
+    public CommonListFile(List<CacheSlice> files) {
         this.files = files;
+        boolean complete = true;
+        for (CacheSlice slice : files) {
+            complete = complete && slice.isComplete();
+        }
+        this.isComplete = complete;
+    }
+
+    public boolean isComplete() {
+        return isComplete;
     }
 
     @Override
-    public synchronized File consume() {
+    public synchronized CacheSlice consume() {
         if (files.isEmpty()) {
             return null;
         }
@@ -19,7 +28,7 @@ public class CommonListFile implements ListFile {
     }
 
     @Override
-    public void server(File file) {
+    public void close() {
 
     }
 }
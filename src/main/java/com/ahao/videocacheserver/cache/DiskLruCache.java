@@ -1,62 +1,183 @@
 package com.ahao.videocacheserver.cache;
 
 import com.ahao.videocacheserver.HttpResponse;
-import com.ahao.videocacheserver.ProxyCharset;
 import com.ahao.videocacheserver.util.CloseUtil;
 import com.ahao.videocacheserver.util.Constant;
 
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class DiskLruCache {
     private String cachePath;
-    private final ExecutorService service = Executors.newFixedThreadPool(1);
 
-    private final int maxSize;
+    private final long maxSize;
 
-    private final static float TRIM_FACTOR = 0.75f;
+    // least recently used files looked at for each eviction, those of a url busy elsewhere are skipped
+    private final static int EVICTION_CANDIDATES = 8;
 
-    private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
-    private final Lock rLock = rwLock.readLock();
-    private final Lock wLock = rwLock.writeLock();
-    private volatile int curTotalSize;
+    // a power of two, urls are spread over the stripes by the hash of their directory names
+    private final static int LOCK_STRIPES = 32;
+
+    private final ReadWriteLock[] urlLocks = new ReadWriteLock[LOCK_STRIPES];
+    private final AtomicLong reservedSize = new AtomicLong();
     private final String NAME_SEPARATOR = "_";
 
     private final int cacheSlice;
-
-    public DiskLruCache(String cachePath, int maxSize) {
+    private volatile long downloadBudget = 0;
+    private volatile CancelPolicy cancelPolicy = CancelPolicy.DETACH;
+    private final CacheStats stats = new CacheStats();
+    private final WriterScheduler writerScheduler;
+    private final SliceCompactor compactor;
+    private final HeaderCache headerCache;
+    private final SliceIndex sliceIndex;
+    private volatile CacheJournal journal;
+    private volatile EvictionPolicy evictionPolicy = new LruPolicy();
+    private volatile MemoryCache memoryCache;
+    private volatile SlicePrefetcher prefetcher;
+    private volatile PlaylistPrefetcher playlistPrefetcher;
+    // null when each range is a file of its own
+    private final SparseFileStore sparseStore;
+
+    private final ConcurrentHashMap<String, LiveDownload> inFlightSlices = new ConcurrentHashMap<>();
+
+    public DiskLruCache(String cachePath, long maxSize) {
         this(cachePath, maxSize, Constant.CACHE_SLICE_5MB);
 
     }
 
-    public DiskLruCache(String cachePath, int maxSize, int cacheSlice) {
+    public DiskLruCache(String cachePath, long maxSize, int cacheSlice) {
+        this(cachePath, maxSize, cacheSlice, Constant.WRITER_THREAD_COUNT, Constant.WRITER_COUNT_PER_HOST);
+    }
+
+    public DiskLruCache(String cachePath, long maxSize, int cacheSlice, StorageFormat storageFormat) {
+        this(cachePath, maxSize, cacheSlice, Constant.WRITER_THREAD_COUNT, Constant.WRITER_COUNT_PER_HOST, storageFormat);
+    }
+
+    public DiskLruCache(String cachePath, long maxSize, int cacheSlice, int writerThreadCount, int maxWritersPerHost) {
+        this(cachePath, maxSize, cacheSlice, writerThreadCount, maxWritersPerHost, StorageFormat.SLICE_FILES);
+    }
+
+    public DiskLruCache(String cachePath, long maxSize, int cacheSlice, int writerThreadCount, int maxWritersPerHost,
+                        StorageFormat storageFormat) {
         this.cachePath = cachePath;
         this.maxSize = maxSize;
+        for (int i = 0; i < urlLocks.length; i++) {
+            urlLocks[i] = new ReentrantReadWriteLock();
+        }
         this.cacheSlice = cacheSlice;
+        this.writerScheduler = new WriterScheduler(writerThreadCount, maxWritersPerHost, stats);
+        this.compactor = new SliceCompactor(writerScheduler, Constant.COMPACT_IDLE_MILLIS,
+                Constant.COMPACT_BYTES_PER_SECOND, Constant.COMPACT_DELETE_DELAY_MILLIS);
+        this.headerCache = new HeaderCache(new File(cachePath, "headers"), Constant.HEADER_CACHE_SIZE);
+        this.sliceIndex = new SliceIndex(cacheSlice);
+        this.sparseStore = storageFormat == StorageFormat.SPARSE_FILE ? new SparseFileStore() : null;
+        this.journal = new CacheJournal(new File(cachePath), cacheSlice, evictionPolicy);
+        journal.open(new File(cachePath, "content"), sliceIndex);
+        openSparseFiles();
+    }
+
+    /**
+     * With a positive budget, a download is no longer paced by its readers: it fetches at origin
+     * speed and reserves at most {@code downloadBudget} bytes (but always one slice), so a paused
+     * player cannot stall the origin connection into a timeout. 0 keeps readers pacing the writer.
+     */
+    public void setDownloadBudget(long downloadBudget) {
+        this.downloadBudget = downloadBudget;
+    }
+
+    public long getDownloadBudget() {
+        return downloadBudget;
+    }
+
+    public void setCancelPolicy(CancelPolicy cancelPolicy) {
+        this.cancelPolicy = cancelPolicy;
+    }
+
+    public CancelPolicy getCancelPolicy() {
+        return cancelPolicy;
+    }
+
+    /**
+     * Replaces the policy that picks the files to evict and the slices worth caching, LRU by default.
+     */
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+        journal.setPolicy(evictionPolicy);
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
     }
 
-    private int getTotalSize(String cachePath) {
-        int total = 0;
-        List<File> ret = new ArrayList<>();
-        getAllFiles(ret, new File(cachePath));
-        for (File file : ret) {
-            total += file.length();
+    /**
+     * Holds the first {@link Constant#MEMORY_CACHE_WINDOW} bytes of hot slice files in up to
+     * {@code maxSize} bytes of direct memory, in front of the disk. 0, the default, turns it off.
+     */
+    public synchronized void setMemoryCacheSize(long maxSize) {
+        if (memoryCache != null) {
+            memoryCache.shutdown();
         }
-        return total;
+        memoryCache = maxSize > 0 ? new MemoryCache(maxSize, Constant.MEMORY_CACHE_WINDOW,
+                Constant.MEMORY_CACHE_PROMOTE_HITS, stats) : null;
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    private File getHeaderParentFile(String host) {
-        File file = new File(cachePath + "/headers" + "/" + getTransformedString(host));
-        if (!file.exists()) {
-            file.mkdirs();
+    /**
+     * Reads up to {@code maxSlices} slices ahead of viewers that play a url in order, 0 (the default)
+     * turns read-ahead off.
+     */
+    public synchronized void setReadAheadSlices(int maxSlices) {
+        if (prefetcher != null) {
+            prefetcher.shutdown();
         }
-        return file;
+        prefetcher = maxSlices > 0 ? new SlicePrefetcher(this, cacheSlice, maxSlices, stats) : null;
+    }
+
+    /**
+     * The read-ahead of sequential viewers, or null if it is off.
+     */
+    public SlicePrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Warms up to {@code segments} segments after each segment of an HLS playlist a player asks for,
+     * 0 (the default) turns it off.
+     */
+    public synchronized void setPlaylistPrefetchSegments(int segments) {
+        if (playlistPrefetcher != null) {
+            playlistPrefetcher.shutdown();
+        }
+        playlistPrefetcher = segments > 0 ? new PlaylistPrefetcher(this, segments) : null;
+    }
+
+    /**
+     * The prefetch of HLS segments, or null if it is off.
+     */
+    public PlaylistPrefetcher getPlaylistPrefetcher() {
+        return playlistPrefetcher;
+    }
+
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    /**
+     * The size of the completed slice files plus the slices reserved for downloads in flight, and the
+     * bytes sparse files hold besides their ranges.
+     */
+    private long getTotalSize() {
+        return journal.getTotalSize() + reservedSize.get() + getSlack();
+    }
+
+    private long getSlack() {
+        return sparseStore == null ? 0 : sparseStore.getSlack();
     }
 
     @SuppressWarnings("ResultOfMethodCallIgnored")
@@ -76,328 +197,619 @@ public class DiskLruCache {
         return file;
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
+    /**
+     * Remembers the origin headers of {@code url}. They are kept in memory and written to disk in the
+     * background, unless the resource is unchanged from the headers already cached.
+     */
     public void cacheHeaders(String host, String url, HttpResponse response) {
-        wLock.lock();
-
-        try {
-            File file = new File(getHeaderParentFile(host), getTransformedString(url));
-            if (file.exists()) {
-                file.delete();
-            }
-
-            try (FileOutputStream fileOutputStream = new FileOutputStream(file)) {
-                file.createNewFile();
-
-                String string = response.getHeadText();
-                fileOutputStream.write(string.getBytes(ProxyCharset.CUR_CHARSET));
-                fileOutputStream.flush();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        } finally {
-            wLock.unlock();
-        }
-
+        headerCache.put(host, url, response);
     }
 
+    /**
+     * Returns a copy of the cached origin headers of {@code url}, or null if there are none.
+     */
     public HttpResponse getCacheHeaders(String host, String url) {
-        File file = new File(getHeaderParentFile(host), getTransformedString(url));
-        if (!file.exists()) {
-            return null;
-        }
-
-        rLock.lock();
-        try (FileInputStream fileInputStream = new FileInputStream(file)) {
-            return HttpResponse.parse(fileInputStream);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        } finally {
-            rLock.unlock();
-        }
+        return headerCache.get(host, url);
     }
 
     public void clearCacheHeaders(String host, String url) {
-        wLock.lock();
-
-        File file = new File(getHeaderParentFile(host), getTransformedString(url));
-        if (file.exists()) {
-            file.delete();
-        }
-
-        wLock.unlock();
+        headerCache.remove(host, url);
     }
 
-    public BlockListFile put(SegmentInfo key, final InputStream inputStream) {
-        wLock.lock();
+    /**
+     * Registers the slices of {@code key} as in flight before anything is fetched, so concurrent
+     * lookups of the same slices attach to this download instead of starting their own. The
+     * reservation evicts the least recently used files to make room for each slice, and stops at the
+     * first slice that is already in flight or does not fit the cache; returns null if not even the
+     * first slice could be reserved. Only the lock of the url is held, lookups and downloads of other
+     * urls go on meanwhile.
+     */
+    public LiveDownload reserve(SegmentInfo key) {
+        return reserve(key, downloadBudget <= 0);
+    }
 
-        curTotalSize = getTotalSize(cachePath);
-        checkToTrim(getContentRootFile());
+    /**
+     * Like {@link #reserve(SegmentInfo)}, but the download is only paced by its readers if
+     * {@code isPaced}. Read-ahead is not, a viewer who attaches to it and pauses must not hold up the
+     * read-ahead thread.
+     */
+    LiveDownload reserve(SegmentInfo key, boolean isPaced) {
+        compactor.onActivity();
 
-        int pendingCacheLength = 0;
+        Lock wLock = getLock(getTransformedString(key.getHost()), getTransformedString(key.getUrl())).writeLock();
+        wLock.lock();
+        long pendingCacheLength = 0;
         try {
-            checkToCombine(key);
-            final List<SegmentInfo> keys = new ArrayList<>();
+            final List<CacheSlice> slices = new ArrayList<>();
             // slice start from 0
-            int diskRangeStartSlice = key.getStartByte() / cacheSlice;
-            int diskRangeEndSlice = key.getEndByte() / cacheSlice;
+            long diskRangeStartSlice = key.getStartByte() / cacheSlice;
+            long diskRangeEndSlice = key.getEndByte() / cacheSlice;
 
-            for (int i = diskRangeStartSlice; i <= diskRangeEndSlice; i++) {
-                int sliceStartByte = i * cacheSlice;
-                int sliceEndByte = sliceStartByte + cacheSlice - 1;
+            for (long i = diskRangeStartSlice; i <= diskRangeEndSlice; i++) {
+                long sliceStartByte = i * cacheSlice;
+                long sliceEndByte = sliceStartByte + cacheSlice - 1;
                 SegmentInfo k = new SegmentInfo(key.getHost(),
                         key.getUrl(),
                         Math.max(sliceStartByte, key.getStartByte()),
                         Math.min(key.getEndByte(), sliceEndByte));
-                if (curTotalSize + pendingCacheLength > maxSize) {
+                if (downloadBudget > 0 && !slices.isEmpty() && pendingCacheLength + k.getLength() > downloadBudget) {
+                    break;
+                }
+                if (inFlightSlices.containsKey(getInFlightKey(k)) || !tryReserveSpace(k)) {
+                    break;
+                }
+                CacheSlice slice = newSlice(k);
+                if (!createTempFile(slice)) {
+                    reservedSize.addAndGet(-k.getLength());
                     break;
                 }
+                journal.onDirty(getJournalPath(k));
                 pendingCacheLength += k.getLength();
-                keys.add(k);
+                slices.add(slice);
             }
 
-            final BlockListFile blockList = new BlockListFile();
-            blockList.setTotalLength(pendingCacheLength);
-            service.submit(new Runnable() {
-                @Override
-                public void run() {
-                    for (SegmentInfo info : keys) {
-                        File f = writeToFile(inputStream, info);
-                        if (f.length() != info.getEndByte() - info.getStartByte() + 1) {
-                            f.delete();
-                        }
-                        blockList.server(f);
-                    }
-                    blockList.destroy();
-                }
-            });
-            return blockList;
+            if (slices.isEmpty()) {
+                return null;
+            }
+            LiveDownload download = new LiveDownload(slices,
+                    isPaced ? LiveDownload.DEFAULT_MAX_AHEAD_SLICES : LiveDownload.UNBOUNDED,
+                    cancelPolicy, stats);
+            for (CacheSlice slice : slices) {
+                inFlightSlices.put(getInFlightKey(slice.getKey()), download);
+            }
+            return download;
         } finally {
             wLock.unlock();
         }
     }
 
-    private void checkToTrim(File parentFile) {
-        if (curTotalSize > maxSize) {
-            removeEmptyFile(parentFile);
-            List<File> ret = new LinkedList<>();
-            getAllFiles(ret, parentFile);
-            Collections.sort(ret, new Comparator<File>() {
-                @Override
-                public int compare(File o1, File o2) {
-                    return Long.compare(o2.lastModified(), o1.lastModified());
+    /**
+     * Counts the bytes of {@code key} as reserved, evicting the files the policy picks one at a time
+     * until they fit, unless the policy would rather not cache the slice than evict its next victim.
+     * When nothing more can be evicted the slice is still admitted unless the cache is already over
+     * its size. Reservations of different urls race, so the check and the count are one atomic step.
+     * A slice larger than the whole cache is turned down before anything is evicted for it.
+     */
+    private boolean tryReserveSpace(SegmentInfo key) {
+        long length = key.getLength();
+        if (length > maxSize) {
+            return false;
+        }
+        while (true) {
+            long reserved = reservedSize.get();
+            long total = journal.getTotalSize() + reserved + getSlack();
+            if (total + length > maxSize) {
+                List<String> victims = journal.getVictims(EVICTION_CANDIDATES);
+                if (!victims.isEmpty() && !journal.admit(getJournalUrl(key), (int) (key.getStartByte() / cacheSlice), victims.get(0))) {
+                    stats.onAdmissionRejected();
+                    return false;
                 }
-            });
-            Iterator<File> iterator = ret.iterator();
-            while (iterator.hasNext()) {
-                File next = iterator.next();
-                long length = next.length();
-                if (curTotalSize + length > maxSize * TRIM_FACTOR) {
-                    if (next.delete()) {
-                        curTotalSize -= length;
-                    }
-                    iterator.remove();
+                if (evict(victims)) {
+                    continue;
                 }
             }
-
+            if (total > maxSize) {
+                return false;
+            }
+            if (reservedSize.compareAndSet(reserved, reserved + length)) {
+                return true;
+            }
         }
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    private void removeEmptyFile(File parentFile) {
-        File[] files = parentFile.listFiles();
-        if (files != null && files.length != 0) {
-            for (File file : files) {
-                if (file.isDirectory()) {
-                    removeEmptyFile(file);
-                } else {
-                    if (file.length() == 0) {
-                        file.delete();
-                    }
+    /**
+     * Deletes the first of {@code victims} it can. The caller may hold the lock of its own url, so the
+     * lock of a victim's url is only tried, a file of a url locked elsewhere is passed over.
+     */
+    private boolean evict(List<String> victims) {
+        File contentRoot = getContentRootFile();
+        for (String path : victims) {
+            File file = new File(contentRoot, path);
+            File urlDir = file.getParentFile();
+            Lock wLock = getLock(urlDir.getParentFile().getName(), urlDir.getName()).writeLock();
+            if (!wLock.tryLock()) {
+                continue;
+            }
+            try {
+                if (sparseStore == null ? removeSliceFile(file) : removeSparseRangesFrom(file)) {
+                    return true;
                 }
+            } finally {
+                wLock.unlock();
             }
-        } else {
-            parentFile.delete();
         }
+        return false;
     }
 
-    private void getAllFiles(List<File> ret, File file) {
-        if (file.exists()) {
-            if (file.isDirectory()) {
-                File[] files = file.listFiles();
-                if (files != null && files.length > 0) {
-                    for (File f : files) {
-                        getAllFiles(ret, f);
-                    }
-                }
-            } else {
-                ret.add(file);
-            }
-        }
+    private ReadWriteLock getLock(String hostDir, String urlDir) {
+        int hash = hostDir.hashCode() * 31 + urlDir.hashCode();
+        return urlLocks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
     }
 
-    private void checkToCombine(SegmentInfo segmentKey) {
-        File parentPathFile = getContentParentFile(segmentKey.getHost(), segmentKey.getUrl());
-        String[] list = parentPathFile.list(new FilenameFilter() {
+    /**
+     * Starts writing the reserved slices from {@code inputStream}, which is closed when the download
+     * ends. {@code source} is closed if the download is cancelled, to unblock a read from the origin.
+     */
+    public void put(final LiveDownload download, final InputStream inputStream, final Closeable source) {
+        final String host = download.getSlices().get(0).getKey().getHost();
+        writerScheduler.submit(host, new Runnable() {
             @Override
-            public boolean accept(File dir, String name) {
-                String[] split = name.split(NAME_SEPARATOR);
-                return split.length >= 2;
+            public void run() {
+                // a download held back by a paused player gives its place to the next one
+                download.setPauseListener(new LiveDownload.PauseListener() {
+                    @Override
+                    public void onPaused() {
+                        writerScheduler.onPaused(host);
+                    }
+
+                    @Override
+                    public void onResumed() {
+                        writerScheduler.onResumed(host);
+                    }
+                });
+                write(download, inputStream, source);
             }
         });
+    }
 
-        if (list == null || list.length == 0) {
-            return;
+    /**
+     * Writes the reserved slices like {@link #put}, on the calling thread.
+     */
+    void write(LiveDownload download, InputStream inputStream, Closeable source) {
+        download.setSource(source);
+        boolean isWriting = true;
+        for (CacheSlice slice : download.getSlices()) {
+            if (isWriting) {
+                download.publish(slice);
+                writeToSlice(download, inputStream, slice);
+            }
+            isWriting = finishSlice(download, slice) && isWriting;
         }
-        ArrayList<Range> fileRanges = new ArrayList<>();
+        download.finish();
+        CloseUtil.close(inputStream);
+    }
 
-        for (String fileName : list) {
-            Range range = getFileRangeByName(fileName);
-            if (range.length() > cacheSlice) {
-                deleteFileByRange(range);
-            } else {
-                fileRanges.add(range);
-            }
-        }
-
-        for (int i = 0; i < fileRanges.size(); i++) {
-            Range rangeI = fileRanges.get(i);
-            if (rangeI.length() < cacheSlice) {
-                for (int j = 0; j < fileRanges.size(); j++) {
-                    Range rangeJ = fileRanges.get(j);
-                    if (i != j) {
-                        if (rangeI.isIntersected(rangeJ)) {
-                            if (rangeJ.contains(rangeI)) {
-                                deleteFileByRange(rangeI);
-                                fileRanges.remove(i);
-                                i--;
-                                break;
-                            } else {
-                                File file = combineFile(parentPathFile, rangeI, rangeJ);
-                                int startRange = Math.min(rangeI.start, rangeJ.start);
-                                int endRange = Math.max(rangeI.end, rangeJ.end);
-                                Range range = new Range(startRange, endRange);
-                                if (file != null) {
-                                    if (file.exists() && file.length() == range.length()) {
-                                        fileRanges.set(i, range);
-                                        fileRanges.remove(j);
-                                        deleteFileByRange(rangeI);
-                                        deleteFileByRange(rangeJ);
-                                        i--;
-                                        break;
-                                    } else {
-                                        file.delete();
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
+    /**
+     * Whether downloads of requests are waiting for a writer, read-ahead gives way to them.
+     */
+    boolean isWriterBusy() {
+        return writerScheduler.getQueueDepth() > 0;
+    }
+
+    /**
+     * Whether the bytes of {@code key} are on disk or being downloaded. Unlike {@link #get} this is not
+     * a use of the files, the eviction policy does not hear of it.
+     */
+    boolean contains(SegmentInfo key) {
+        if (getInFlightSlice(key) != null) {
+            return true;
+        }
+        String hostDir = getTransformedString(key.getHost());
+        String urlDir = getTransformedString(key.getUrl());
+        Lock rLock = getLock(hostDir, urlDir).readLock();
+        rLock.lock();
+        try {
+            return sliceIndex.find(hostDir, urlDir, key.getStartByte(), key.getEndByte()) != null;
+        } finally {
+            rLock.unlock();
+        }
+    }
+
+    public void abort(LiveDownload download) {
+        for (CacheSlice slice : download.getSlices()) {
+            finishSlice(download, slice);
+        }
+        download.finish();
+    }
+
+    /**
+     * Attaches a reader to the in-flight download that holds the first byte of {@code key}, or
+     * returns null if that byte is not being downloaded.
+     */
+    public LiveDownload.Reader attach(SegmentInfo key) {
+        LiveDownload download = inFlightSlices.get(getInFlightKey(key));
+        if (download == null) {
+            return null;
+        }
+        return download.newReader(key.getStartByte());
+    }
+
+    private boolean finishSlice(LiveDownload download, CacheSlice slice) {
+        boolean isComplete = slice.finish();
+        SegmentInfo key = slice.getKey();
+        if (isComplete) {
+            journal.onAdded(getJournalPath(key), key.getLength());
+            sliceIndex.add(getTransformedString(key.getHost()), getTransformedString(key.getUrl()),
+                    key.getStartByte(), key.getEndByte());
+            scheduleCompaction(key.getHost(), key.getUrl());
+            MemoryCache memory = memoryCache;
+            if (memory != null) {
+                memory.offer(getJournalPath(key), slice.getFile(), slice.getOffset(), slice.getLength());
             }
+        } else {
+            journal.onRemoved(getJournalPath(key));
+        }
+        if (sparseStore != null) {
+            File urlDir = slice.getFile().getParentFile();
+            sparseStore.onWriteFinished(urlDir, key, slice.getWritten());
+            updateSparseFile(urlDir);
         }
+        reservedSize.addAndGet(-key.getLength());
+        inFlightSlices.remove(getInFlightKey(slice.getKey()), download);
+        return isComplete;
+    }
 
+    private String getInFlightKey(SegmentInfo key) {
+        return key.getHost() + "/" + key.getUrl() + "/" + key.getStartByte() / cacheSlice;
     }
 
+    private CacheSlice getInFlightSlice(SegmentInfo key) {
+        LiveDownload download = inFlightSlices.get(getInFlightKey(key));
+        if (download == null) {
+            return null;
+        }
+        for (CacheSlice slice : download.getSlices()) {
+            SegmentInfo sliceKey = slice.getKey();
+            if (sliceKey.getStartByte() <= key.getStartByte() && sliceKey.getEndByte() >= key.getEndByte()) {
+                return slice;
+            }
+        }
+        return null;
+    }
 
+    /**
+     * Deletes a completed slice file and forgets it, along with its url directory once that is empty.
+     * In a sparse file only the range is forgotten, the file shrinks later once it no longer holds the end.
+     */
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    private void deleteFileByRange(Range range) {
-        new File(range.start + NAME_SEPARATOR + range.end).delete();
+    private boolean removeSliceFile(File file) {
+        File urlDir = file.getParentFile();
+        Lock wLock = getLock(urlDir.getParentFile().getName(), urlDir.getName()).writeLock();
+        wLock.lock();
+        try {
+            if (!file.delete() && file.exists()) {
+                return false;
+            }
+            String path = getJournalPath(file);
+            journal.onRemoved(path);
+            sliceIndex.remove(file);
+            MemoryCache memory = memoryCache;
+            if (memory != null) {
+                memory.remove(path);
+            }
+            if (sparseStore != null) {
+                updateSparseFile(urlDir);
+            } else {
+                urlDir.delete();
+            }
+            return true;
+        } finally {
+            wLock.unlock();
+        }
     }
 
-    private Range getFileRangeByName(String name) {
-        Range range = new Range();
-        if (name != null && name.contains(NAME_SEPARATOR)) {
-            try {
-                String[] s = name.split(NAME_SEPARATOR);
-                range.start = Integer.parseInt(s[0]);
-                range.end = Integer.parseInt(s[1]);
-            } catch (Exception ignore) {
+    /**
+     * Evicts a range of a sparse file along with the ranges after it. A sparse file only gives space
+     * back from its end, a range evicted on its own would keep its blocks.
+     */
+    private boolean removeSparseRangesFrom(File file) {
+        SliceIndex.CachedRange victim = SliceIndex.CachedRange.parse(file.getName());
+        File urlDir = file.getParentFile();
+        if (victim == null || !removeSliceFile(file)) {
+            return false;
+        }
+        for (SliceIndex.CachedRange range : sliceIndex.list(urlDir.getParentFile().getName(), urlDir.getName())) {
+            if (range.start > victim.start) {
+                removeSliceFile(new File(urlDir, range.getFileName()));
             }
-
         }
-        return range;
+        return true;
     }
 
-    private File combineFile(File parentPathFile, Range range1, Range range2) {
-        if (!range1.isIntersected(range2) && !range1.isContinuous(range2)) {
-            return null;
+    private void updateSparseFile(File urlDir) {
+        Lock wLock = getLock(urlDir.getParentFile().getName(), urlDir.getName()).writeLock();
+        wLock.lock();
+        try {
+            if (sparseStore.update(urlDir, sliceIndex.list(urlDir.getParentFile().getName(), urlDir.getName()))) {
+                shrinkSparseFileLater(urlDir);
+            }
+        } finally {
+            wLock.unlock();
         }
+    }
 
-        int startRange = Math.min(range1.start, range2.start);
-        int endRange = Math.max(range1.end, range2.end);
+    /**
+     * Cuts the space past the ranges of a sparse file off once readers that looked them up before they
+     * went had time to read them, like the fragments a compaction replaced.
+     */
+    private void shrinkSparseFileLater(final File urlDir) {
+        compactor.deleteLater(new Runnable() {
+            @Override
+            public void run() {
+                Lock wLock = getLock(urlDir.getParentFile().getName(), urlDir.getName()).writeLock();
+                wLock.lock();
+                try {
+                    sparseStore.shrink(urlDir);
+                } finally {
+                    wLock.unlock();
+                }
+            }
+        });
+    }
 
-        Range firstRange;
-        Range secondRange;
-        if (range1.start < range2.start) {
-            firstRange = range1;
-            secondRange = range2;
-        } else {
-            firstRange = range2;
-            secondRange = range1;
+    /**
+     * Takes in the sparse files the journal listed ranges of.
+     */
+    private void openSparseFiles() {
+        if (sparseStore == null) {
+            return;
         }
+        sparseStore.clear();
+        File contentRoot = new File(cachePath, "content");
+        for (String url : sliceIndex.getUrls()) {
+            File urlDir = new File(contentRoot, url);
+            if (sparseStore.open(urlDir, sliceIndex.list(urlDir.getParentFile().getName(), urlDir.getName()))) {
+                shrinkSparseFileLater(urlDir);
+            }
+        }
+    }
 
-        int skipLength = firstRange.end - secondRange.start + 1;
-
-        File outFile = new File(parentPathFile, startRange + NAME_SEPARATOR + endRange);
-        File firstFile = new File(parentPathFile, firstRange.start + NAME_SEPARATOR + firstRange.end);
-        File secondFile = new File(parentPathFile, secondRange.start + NAME_SEPARATOR + secondRange.end);
+    private void scheduleCompaction(final String host, final String url) {
+        final String hostDir = getTransformedString(host);
+        final String urlDir = getTransformedString(url);
+        compactor.submit(hostDir + "/" + urlDir, new Runnable() {
+            @Override
+            public void run() {
+                compact(host, url, hostDir, urlDir);
+            }
+        });
+    }
 
-        FileInputStream firstInputStream = null;
-        RandomAccessFile outputStream = null;
-        RandomAccessFile secondRandomFile = null;
+    /**
+     * Merges the files of each slice of a url that overlap or touch into one file, on the compactor
+     * thread. Runs of files are found from the index, a run whose bytes one of its files already
+     * holds just drops the others. Slices with a download in flight are left alone.
+     */
+    private void compact(String host, String url, String hostDir, String urlDir) {
+        List<SliceIndex.CachedRange> ranges = sliceIndex.list(hostDir, urlDir);
+        int i = 0;
+        while (i < ranges.size()) {
+            int slice = (int) (ranges.get(i).start / cacheSlice);
+            List<SliceIndex.CachedRange> sliceRanges = new ArrayList<>();
+            while (i < ranges.size() && ranges.get(i).start / cacheSlice == slice) {
+                sliceRanges.add(ranges.get(i++));
+            }
+            if (sliceRanges.size() < 2
+                    || inFlightSlices.containsKey(getInFlightKey(new SegmentInfo(host, url, (long) slice * cacheSlice, (long) slice * cacheSlice)))) {
+                continue;
+            }
+            Collections.sort(sliceRanges, new Comparator<SliceIndex.CachedRange>() {
+                @Override
+                public int compare(SliceIndex.CachedRange o1, SliceIndex.CachedRange o2) {
+                    return o1.start != o2.start ? Long.compare(o1.start, o2.start) : Long.compare(o2.end, o1.end);
+                }
+            });
+            List<SliceIndex.CachedRange> run = new ArrayList<>();
+            long runEnd = -1;
+            for (SliceIndex.CachedRange range : sliceRanges) {
+                if (!run.isEmpty() && range.start > runEnd + 1) {
+                    compactRun(host, url, hostDir, urlDir, run, runEnd);
+                    run = new ArrayList<>();
+                }
+                run.add(range);
+                runEnd = Math.max(runEnd, range.end);
+            }
+            compactRun(host, url, hostDir, urlDir, run, runEnd);
+        }
+    }
 
-        try {
-            outputStream = new RandomAccessFile(outFile, "rwd");
-            firstInputStream = new FileInputStream(firstFile);
-            secondRandomFile = new RandomAccessFile(secondFile, "rwd");
+    /**
+     * Merges one run of files. The merged file is reserved like a download before it is written, the
+     * fragments stay on disk and counted until they are deleted, so the cache never holds more than
+     * its size meanwhile; a run there is no room for is left as it is.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void compactRun(String host, String url, String hostDir, String urlDir, List<SliceIndex.CachedRange> run, long runEnd) {
+        if (run.size() < 2) {
+            return;
+        }
+        File parentFile = new File(getContentRootFile(), hostDir + "/" + urlDir);
+        // sorted by start and then longest first, so a file holding the whole run comes first
+        SliceIndex.CachedRange first = run.get(0);
+        SliceIndex.CachedRange merged = first.end == runEnd ? first : new SliceIndex.CachedRange(first.start, runEnd);
+        File mergedFile = new File(parentFile, merged.getFileName());
+        long copied = 0;
+        if (merged != first) {
+            String mergedPath = CacheJournal.getPath(hostDir, urlDir, merged.getFileName());
+            File tempFile = new File(mergedFile.getPath() + SliceCompactor.TEMP_SUFFIX);
+            // the bytes of a sparse file are already in place, only the ranges are merged
+            SegmentInfo mergedKey = new SegmentInfo(host, url, merged.start, merged.end);
+            long reserved = 0;
+            if (sparseStore == null) {
+                if (!tryReserveSpace(mergedKey)) {
+                    return;
+                }
+                reserved = mergedKey.getLength();
+            }
+            journal.onDirty(mergedPath);
+            if (sparseStore == null) {
+                copied = copyRun(parentFile, run, merged, tempFile);
+                if (copied < 0) {
+                    tempFile.delete();
+                    journal.onRemoved(mergedPath);
+                    reservedSize.addAndGet(-reserved);
+                    return;
+                }
+            }
 
-            byte[] buf = new byte[1024 * 1024];
-            int length;
-            while ((length = firstInputStream.read(buf, 0, buf.length)) > 0) {
-                outputStream.write(buf, 0, length);
+            Lock wLock = getLock(hostDir, urlDir).writeLock();
+            wLock.lock();
+            try {
+                for (SliceIndex.CachedRange range : run) {
+                    if (!sliceIndex.contains(hostDir, urlDir, range)) {
+                        // trimmed while copying
+                        tempFile.delete();
+                        journal.onRemoved(mergedPath);
+                        return;
+                    }
+                }
+                if (sparseStore == null) {
+                    mergedFile.delete();
+                    if (!tempFile.renameTo(mergedFile)) {
+                        tempFile.delete();
+                        journal.onRemoved(mergedPath);
+                        return;
+                    }
+                }
+                journal.onAdded(mergedPath, merged.getLength());
+                sliceIndex.add(hostDir, urlDir, merged.start, merged.end);
+            } finally {
+                // the merged file is counted by the journal now, or gone
+                reservedSize.addAndGet(-reserved);
+                wLock.unlock();
             }
+        }
 
-            secondRandomFile.seek(skipLength);
+        int fragments = 0;
+        for (SliceIndex.CachedRange range : run) {
+            if (!range.equals(merged)) {
+                final File fragment = new File(parentFile, range.getFileName());
+                sliceIndex.remove(fragment);
+                if (sparseStore != null) {
+                    removeSliceFile(fragment);
+                } else {
+                    compactor.deleteLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            removeSliceFile(fragment);
+                        }
+                    });
+                }
+                fragments++;
+            }
+        }
+        stats.onCompacted(fragments, copied);
+    }
 
-            while ((length = secondRandomFile.read(buf, 0, buf.length)) > 0) {
-                outputStream.write(buf, 0, length);
+    /**
+     * Copies the bytes of a run of fragments into {@code tempFile}, returns the number of bytes copied
+     * or -1 if a fragment could not be read.
+     */
+    private long copyRun(File parentFile, List<SliceIndex.CachedRange> run, SliceIndex.CachedRange merged, File tempFile) {
+        long copied = 0;
+        try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+            FileChannel channel = outputStream.getChannel();
+            long position = merged.start;
+            for (SliceIndex.CachedRange range : run) {
+                if (range.end < position) {
+                    continue;
+                }
+                long count = range.end - position + 1;
+                if (compactor.copy(new File(parentFile, range.getFileName()), position - range.start, count, channel) != count) {
+                    throw new IOException("fragment " + range.getFileName() + " is shorter than its name");
+                }
+                copied += count;
+                position = range.end + 1;
             }
-        } catch (Exception e) {
+            return copied;
+        } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            CloseUtil.close(firstInputStream);
-            CloseUtil.close(outputStream);
-            CloseUtil.close(secondRandomFile);
+            return -1;
         }
+    }
 
-        return null;
+    private static String getJournalUrl(SegmentInfo key) {
+        return getTransformedString(key.getHost()) + "/" + getTransformedString(key.getUrl());
+    }
+
+    private String getJournalPath(SegmentInfo key) {
+        return CacheJournal.getPath(getTransformedString(key.getHost()), getTransformedString(key.getUrl()),
+                key.getStartByte() + NAME_SEPARATOR + key.getEndByte());
     }
 
+    private String getJournalPath(File file) {
+        File urlDir = file.getParentFile();
+        return CacheJournal.getPath(urlDir.getParentFile().getName(), urlDir.getName(), file.getName());
+    }
+
+    private File getSliceFile(SegmentInfo segmentKey) {
+        return new File(getContentParentFile(segmentKey.getHost(), segmentKey.getUrl()), segmentKey.getStartByte() + NAME_SEPARATOR + segmentKey.getEndByte());
+    }
+
+    private CacheSlice newSlice(SegmentInfo key) {
+        if (sparseStore == null) {
+            return new CacheSlice(getSliceFile(key), key);
+        }
+        File urlDir = getContentParentFile(key.getHost(), key.getUrl());
+        return new CacheSlice(SparseFileStore.getDataFile(urlDir), key.getStartByte(), key);
+    }
+
+    /**
+     * Creates the file a reserved slice is written to, the temporary slice file or the sparse file of
+     * the url.
+     */
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    private File writeToFile(InputStream inputStream, SegmentInfo segmentKey) {
-        File file = new File(getContentParentFile(segmentKey.getHost(), segmentKey.getUrl()), segmentKey.getStartByte() + NAME_SEPARATOR + segmentKey.getEndByte());
-        if (file.exists()) {
-            file.delete();
+    private boolean createTempFile(CacheSlice slice) {
+        if (slice.isInPlace()) {
+            return sparseStore.prepare(slice.getFile().getParentFile(), slice.getKey());
         }
+        File tempFile = slice.getTempFile();
         try {
-            file.createNewFile();
+            if (tempFile.exists()) {
+                tempFile.delete();
+            }
+            return tempFile.createNewFile();
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         }
-        int totalLength = segmentKey.getEndByte() - segmentKey.getStartByte() + 1;
-        try (FileOutputStream fileOutputStream = new FileOutputStream(file)) {
-            byte[] buf = new byte[1024 * 512];
+    }
+
+    /**
+     * Writes the bytes of a slice at their offset in its file, a slice of a sparse file shares the file
+     * with the other downloads of the url.
+     */
+    private void writeToSlice(LiveDownload download, InputStream inputStream, CacheSlice slice) {
+        long remaining = slice.getLength();
+        long position = slice.getOffset();
+        try (RandomAccessFile file = new RandomAccessFile(slice.getTempFile(), "rw")) {
+            FileChannel channel = file.getChannel();
+            byte[] buf = new byte[1024 * 64];
             int length;
-            while ((length = inputStream.read(buf, 0, Math.min(buf.length, totalLength))) > 0) {
-                fileOutputStream.write(buf, 0, length);
-                totalLength -= length;
+            while (remaining > 0 && !download.isCancelled()
+                    && (length = inputStream.read(buf, 0, (int) Math.min(buf.length, remaining))) > 0) {
+                ByteBuffer buffer = ByteBuffer.wrap(buf, 0, length);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                remaining -= length;
+                slice.onWritten(length);
             }
-            fileOutputStream.flush();
         } catch (IOException e) {
-            e.printStackTrace();
+            if (!download.isCancelled()) {
+                e.printStackTrace();
+            }
         }
-        return file;
     }
 
     public String getCachePath() {
@@ -406,95 +818,101 @@ public class DiskLruCache {
 
     public void setCachePath(String cachePath) {
         this.cachePath = cachePath;
+        headerCache.setRootDir(new File(cachePath, "headers"));
+        journal.close();
+        journal = new CacheJournal(new File(cachePath), cacheSlice, evictionPolicy);
+        journal.open(new File(cachePath, "content"), sliceIndex);
+        openSparseFiles();
+        MemoryCache memory = memoryCache;
+        if (memory != null) {
+            memory.clear();
+        }
     }
 
+    /**
+     * Looks the slices of {@code segmentInfo} up in the in-flight downloads and the slice index. The
+     * files it hits are marked as recently used in memory, nothing is read from or written to disk.
+     * Files whose first bytes the memory cache holds come with that window.
+     */
     public List<CacheResult> get(SegmentInfo segmentInfo) {
+        return get(segmentInfo, true);
+    }
+
+    /**
+     * Like {@link #get(SegmentInfo)}, but unless {@code isAccess} the eviction policy does not hear of
+     * the lookup, for bytes of a request that was looked up already.
+     */
+    public List<CacheResult> get(SegmentInfo segmentInfo, boolean isAccess) {
+        String hostDir = getTransformedString(segmentInfo.getHost());
+        String urlDir = getTransformedString(segmentInfo.getUrl());
+        Lock rLock = getLock(hostDir, urlDir).readLock();
+        compactor.onActivity();
         rLock.lock();
         try {
-            File parentFile = getContentParentFile(segmentInfo.getHost(), segmentInfo.getUrl());
-            if (!parentFile.exists()) {
-                return null;
-            }
-
-            String[] localFiles = parentFile.list(new FilenameFilter() {
-                @Override
-                public boolean accept(File dir, String name) {
-                    String[] split = name.split(NAME_SEPARATOR);
-                    if (split.length < 2) {
-                        return false;
-                    }
-                    return new File(dir, name).length() > 0;
-                }
-            });
-
-            if (localFiles == null || localFiles.length <= 0) {
-                return null;
-            }
+            File parentFile = new File(cachePath + "/content" + "/" + hostDir + "/" + urlDir);
 
-            List<SegmentInfo> keys = new ArrayList<>();
             List<CacheResult> results = new ArrayList<>();
 
-            int curStartIndex = segmentInfo.getStartByte() / cacheSlice * cacheSlice;
+            long curStartIndex = segmentInfo.getStartByte() / cacheSlice * cacheSlice;
             while (curStartIndex < segmentInfo.getEndByte()) {
                 SegmentInfo key = new SegmentInfo(segmentInfo.getHost(), segmentInfo.getUrl(), curStartIndex, Math.min(curStartIndex + cacheSlice - 1, segmentInfo.getEndByte()));
-                keys.add(key);
+                long skip = results.isEmpty() ? segmentInfo.getStartByte() - curStartIndex : 0;
+                results.add(new CacheResult(key, null, skip, key.getEndByte() - curStartIndex));
                 curStartIndex += cacheSlice;
             }
 
-            if (keys.size() == 0) {
+            if (results.size() == 0) {
                 return null;
             }
 
-            for (int i = 0; i < keys.size(); i++) {
-                curStartIndex = keys.get(i).getStartByte() / cacheSlice * cacheSlice;
-                if (i == 0) {
-                    int skip = segmentInfo.getStartByte() - curStartIndex;
-                    results.add(new CacheResult(keys.get(i), null, skip, Math.min(curStartIndex + cacheSlice - 1, segmentInfo.getEndByte()) - curStartIndex));
-                } else {
-                    results.add(new CacheResult(keys.get(i), null, 0, Math.min(curStartIndex + cacheSlice - 1, segmentInfo.getEndByte()) - curStartIndex));
-                }
-            }
-
-            Map<SegmentInfo, File> localFilesMap = new HashMap<>();
-            for (String localFile : localFiles) {
-                Range range = getFileRangeByName(localFile);
-                localFilesMap.put(new SegmentInfo(segmentInfo.getHost(), segmentInfo.getUrl(), range.start, range.end), new File(parentFile, localFile));
-            }
-
+            boolean hasCached = false;
             for (CacheResult cacheResult : results) {
                 SegmentInfo key = cacheResult.getKey();
-                File f = localFilesMap.get(key);
-                updateModifyTime(f);
-                cacheResult.setCachedFile(f);
-            }
-            return results;
-        } finally {
-            rLock.unlock();
-        }
-
-    }
-
-    private void updateModifyTime(File file) {
-        try (RandomAccessFile accessFile = new RandomAccessFile(file, "rwd")) {
-            if (file.exists()) {
-                long now = System.currentTimeMillis();
-                boolean modified = file.setLastModified(now);
-                if (!modified) {
-                    long size = file.length();
-                    if (size == 0) {
-                        file.delete();
-                        return;
+                long sliceStart = key.getStartByte();
+                long neededStart = sliceStart + cacheResult.getStartBytes();
+                long neededEnd = sliceStart + cacheResult.getEndBytes();
+                CacheSlice inFlightSlice = getInFlightSlice(new SegmentInfo(key.getHost(), key.getUrl(),
+                        neededStart, neededEnd));
+                if (inFlightSlice != null) {
+                    long shift = inFlightSlice.getKey().getStartByte() - sliceStart;
+                    cacheResult.setStartBytes(cacheResult.getStartBytes() - shift);
+                    cacheResult.setEndBytes(cacheResult.getEndBytes() - shift);
+                    cacheResult.setSlice(inFlightSlice);
+                    if (isAccess) {
+                        journal.onLookup(hostDir + "/" + urlDir, (int) (sliceStart / cacheSlice), null);
+                    }
+                    hasCached = true;
+                    continue;
+                }
+                // any file holding the needed bytes will do, offsets become relative to its start
+                SliceIndex.CachedRange cachedRange = sliceIndex.find(hostDir, urlDir, neededStart, neededEnd);
+                if (cachedRange != null) {
+                    long shift = cachedRange.start - sliceStart;
+                    cacheResult.setStartBytes(cacheResult.getStartBytes() - shift);
+                    cacheResult.setEndBytes(cacheResult.getEndBytes() - shift);
+                    // a range of the sparse file is at its own offset in it
+                    File f = sparseStore == null ? new File(parentFile, cachedRange.getFileName())
+                            : SparseFileStore.getDataFile(parentFile);
+                    long offset = sparseStore == null ? 0 : cachedRange.start;
+                    cacheResult.setCachedFile(f, offset, cachedRange.getLength());
+                    String path = CacheJournal.getPath(hostDir, urlDir, cachedRange.getFileName());
+                    MemoryCache memory = memoryCache;
+                    if (memory != null) {
+                        cacheResult.setWindow(memory.get(path, f, offset, cachedRange.getLength()));
+                    }
+                    if (isAccess) {
+                        journal.onLookup(hostDir + "/" + urlDir, (int) (sliceStart / cacheSlice), path);
+                    }
+                    hasCached = true;
+                } else {
+                    if (isAccess) {
+                        journal.onLookup(hostDir + "/" + urlDir, (int) (sliceStart / cacheSlice), null);
                     }
-
-                    accessFile.seek(size - 1);
-                    byte lastByte = accessFile.readByte();
-                    accessFile.seek(size - 1);
-                    accessFile.write(lastByte);
-                    accessFile.close();
                 }
             }
-        } catch (Exception ignore) {
-
+            return hasCached ? results : null;
+        } finally {
+            rLock.unlock();
         }
 
     }
@@ -502,10 +920,14 @@ public class DiskLruCache {
     public static class CacheResult {
         private SegmentInfo key;
         private File cachedFile;
-        private int startBytes;
-        private int endBytes;
-
-        public CacheResult(SegmentInfo key, File cachedFile, int startBytes, int endBytes) {
+        private CacheSlice slice;
+        private ByteBuffer window;
+        private long cachedOffset;
+        private long cachedLength = -1;
+        private long startBytes;
+        private long endBytes;
+
+        public CacheResult(SegmentInfo key, File cachedFile, long startBytes, long endBytes) {
             this.key = key;
             this.startBytes = startBytes;
             this.cachedFile = cachedFile;
@@ -513,7 +935,26 @@ public class DiskLruCache {
         }
 
         public boolean isCached() {
-            return cachedFile != null && cachedFile.exists() && cachedFile.length() > 0;
+            return slice != null || cachedFile != null;
+        }
+
+        public CacheSlice getSlice() {
+            if (slice != null) {
+                return slice;
+            }
+            if (cachedFile == null) {
+                return null;
+            }
+            return CacheSlice.completed(cachedFile, cachedOffset,
+                    cachedLength < 0 ? cachedFile.length() : cachedLength, window);
+        }
+
+        void setWindow(ByteBuffer window) {
+            this.window = window;
+        }
+
+        public void setSlice(CacheSlice slice) {
+            this.slice = slice;
         }
 
         public SegmentInfo getKey() {
@@ -529,62 +970,38 @@ public class DiskLruCache {
         }
 
         public void setCachedFile(File cachedFile) {
+            setCachedFile(cachedFile, 0, -1);
+        }
+
+        /**
+         * The cached bytes are the {@code length} bytes at {@code offset} in {@code cachedFile}.
+         */
+        void setCachedFile(File cachedFile, long offset, long length) {
             this.cachedFile = cachedFile;
+            this.cachedOffset = offset;
+            this.cachedLength = length;
         }
 
-        public int getStartBytes() {
+        public long getStartBytes() {
             return startBytes;
         }
 
-        public void setStartBytes(int startBytes) {
+        public void setStartBytes(long startBytes) {
             this.startBytes = startBytes;
         }
 
-        public int getEndBytes() {
+        public long getEndBytes() {
             return endBytes;
         }
 
-        public void setEndBytes(int endBytes) {
+        public void setEndBytes(long endBytes) {
             this.endBytes = endBytes;
         }
 
     }
 
-    private String getTransformedString(String string) {
+    static String getTransformedString(String string) {
         return string.replaceAll("[/:.]", "_");
     }
 
-    private static class Range {
-        int start;
-        int end;
-
-        private boolean contains(Range range) {
-            return start <= range.start && end >= range.end;
-        }
-
-        private boolean isIntersected(Range range) {
-            int minStart = Math.min(start, range.start);
-            int maxEnd = Math.max(end, range.end);
-            return maxEnd - minStart + 1 < length() + range.length();
-        }
-
-        private boolean isContinuous(Range range) {
-            return start == range.end + 1 || end + 1 == range.start;
-        }
-
-        private int length() {
-            return end - start + 1;
-        }
-
-        private Range(int start, int end) {
-            this.start = start;
-            this.end = end;
-        }
-
-        private Range() {
-        }
-
-    }
-
-
 }
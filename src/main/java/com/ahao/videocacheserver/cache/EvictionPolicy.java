@@ -0,0 +1,41 @@
+package com.ahao.videocacheserver.cache;
+
+import java.util.List;
+
+/**
+ * Decides which slice files {@link DiskLruCache} evicts when it needs room, and whether a new slice is
+ * worth evicting for at all. A file is named by its path under the content root,
+ * {@code host/url/start_end}, where {@code host} and {@code url} are the directories of its host and
+ * url, and a url is named {@code host/url} the same way; {@code slice} is the index of the slice the
+ * file lies in, 0 for the start of the video.
+ * <p>
+ * The cache serializes all calls, implementations need not be thread safe. Lookups reach the policy
+ * in batches, shortly after they happened.
+ */
+public interface EvictionPolicy {
+    /**
+     * A slice of {@code url} was looked up, whether it was cached or not.
+     */
+    void onRequest(String url, int slice);
+
+    void onAdd(String path, int slice);
+
+    void onAccess(String path, int slice);
+
+    void onRemove(String path);
+
+    /**
+     * Up to {@code count} files to evict, the first one first.
+     */
+    List<String> getVictims(int count);
+
+    /**
+     * Whether a new slice of {@code url} should be cached when {@code victim} has to be evicted for it.
+     */
+    boolean admit(String url, int slice, String victim);
+
+    /**
+     * Forgets every file, before the cache adds back the ones it has.
+     */
+    void clear();
+}
@@ -4,6 +4,9 @@ import com.ahao.videocacheserver.util.CloseUtil;
 import com.ahao.videocacheserver.util.Constant;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -11,77 +14,256 @@ public class FilesDataStream extends InputStream {
     private static final Logger logger = Logger.getLogger("FilesDataStream");
 
     private ListFile files;
-    private int totalLength;
-    private int pos;
+    private long totalLength;
+    private long pos;
 
-    private InputStream bis;
+    private CacheSlice curSlice;
+    private ByteBuffer curWindow;
+    // may still be open from the previous slice, which is reused when the slices share a file
+    private FileInputStream curFile;
+    private File curFileSource;
+    private boolean isFileOpen;
+    private long slicePos;
 
-    private int startOffset;
+    private long startOffset;
 
     private boolean curIsFirstFile = true;
+    private boolean isExhausted = false;
 
-    public FilesDataStream(ListFile files, int totalLength) {
+    private final byte[] singleByte = new byte[1];
+
+    public FilesDataStream(ListFile files, long totalLength) {
         this(files, 0, totalLength);
     }
 
-    public FilesDataStream(ListFile files, int startOffset, int totalLength) {
+    public FilesDataStream(ListFile files, long startOffset, long totalLength) {
         this.totalLength = totalLength;
         pos = 0;
         this.startOffset = startOffset;
         this.files = files;
     }
 
-
     @Override
     public int read() throws IOException {
-        if (pos >= totalLength) {
-            return -1;
+        int read = read(singleByte, 0, 1);
+        return read == -1 ? -1 : singleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
         }
-        if (curIsFirstFile) {
-            File f = files.consume();
-            if (f == null || !f.exists()) {
+        while (pos < totalLength) {
+            if (curSlice == null && !openNextFile()) {
                 return -1;
             }
-            bis = new BufferedInputStream(new FileInputStream(f));
-            bis.skip(startOffset);
-            curIsFirstFile = false;
-        }
-        if (bis == null) {
-            return -1;
-        }
-        int read = -1;
-        try {
-            read = bis.read();
-            if (read == -1) {
-                CloseUtil.close(bis);
-                File consumeFile = files.consume();
-                if (consumeFile == null || !consumeFile.exists()){
-                    bis = null;
+            if (curWindow != null) {
+                if (curWindow.hasRemaining()) {
+                    int read = (int) Math.min(Math.min(len, totalLength - pos), curWindow.remaining());
+                    curWindow.get(b, off, read);
+                    pos += read;
+                    slicePos += read;
+                    return read;
+                }
+                curWindow = null;
+                if (slicePos == curSlice.getLength()) {
+                    nextSlice();
+                    continue;
+                }
+            }
+            if (!isFileOpen && !openCurFile()) {
+                return -1;
+            }
+            int read;
+            try {
+                long available = curSlice.awaitAvailable(slicePos);
+                if (available < 0) {
+                    closeCurFile();
+                    isExhausted = true;
                     return -1;
                 }
-                bis = new BufferedInputStream(new FileInputStream(consumeFile));
-                read = bis.read();
+                if (available == 0) {
+                    nextSlice();
+                    continue;
+                }
+                read = curFile.read(b, off, (int) Math.min(Math.min(len, totalLength - pos), available));
+            } catch (IOException e) {
+                if (Constant.enableLog) {
+                    logger.log(Level.SEVERE, "read exception", e);
+                }
+                closeCurFile();
+                isExhausted = true;
+                return -1;
             }
-        } catch (Exception e) {
-            if(Constant.enableLog){
-                logger.log(Level.SEVERE, "read exception", e);
+            if (read == -1) {
+                // the file is shorter than the bytes it was said to hold, a sparse file cut meanwhile
+                closeCurFile();
+                isExhausted = true;
+                throw new IOException("unexpected end of cached file at " + pos + " of " + totalLength);
             }
-            CloseUtil.close(bis);
-            bis = null;
+            pos += read;
+            slicePos += read;
+            return read;
+        }
+        return -1;
+    }
+
+    /**
+     * Whether every slice is already complete on disk, so the body can be sent with
+     * {@link #transferTo(WritableByteChannel)} instead of being copied through the heap.
+     */
+    public boolean isTransferable() {
+        return Constant.enableZeroCopy && files instanceof CommonListFile && ((CommonListFile) files).isComplete();
+    }
 
+    /**
+     * Sends as much of the remaining body as the target accepts with {@link FileChannel#transferTo},
+     * windows held in memory are written as they are. Returns the number of bytes sent by this call. A
+     * non-blocking target may accept only part of it, call again once it is writable until
+     * {@link #isFinished()}.
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long transferred = 0;
+        while (pos < totalLength) {
+            if (curSlice == null && !openNextFile()) {
+                break;
+            }
+            if (curWindow != null) {
+                if (curWindow.hasRemaining()) {
+                    int sent = transferWindow(target);
+                    if (sent <= 0) {
+                        break;
+                    }
+                    slicePos += sent;
+                    pos += sent;
+                    transferred += sent;
+                    continue;
+                }
+                curWindow = null;
+                if (slicePos == curSlice.getLength()) {
+                    nextSlice();
+                    continue;
+                }
+            }
+            if (!isFileOpen && !openCurFile()) {
+                break;
+            }
+            FileChannel channel = curFile.getChannel();
+            long position = curSlice.getOffset() + slicePos;
+            long count = Math.min(curSlice.getWritten() - slicePos, totalLength - pos);
+            if (count <= 0) {
+                nextSlice();
+                continue;
+            }
+            long sent = channel.transferTo(position, count, target);
+            if (sent <= 0) {
+                if (position >= channel.size()) {
+                    closeCurFile();
+                    isExhausted = true;
+                    throw new IOException("unexpected end of cached file at " + pos + " of " + totalLength);
+                }
+                break;
+            }
+            channel.position(position + sent);
+            slicePos += sent;
+            pos += sent;
+            transferred += sent;
+        }
+        return transferred;
+    }
+
+    private int transferWindow(WritableByteChannel target) throws IOException {
+        int limit = curWindow.limit();
+        curWindow.limit((int) Math.min(limit, curWindow.position() + (totalLength - pos)));
+        try {
+            return target.write(curWindow);
+        } finally {
+            curWindow.limit(limit);
+        }
+    }
+
+    public boolean isFinished() {
+        return pos >= totalLength || isExhausted;
+    }
+
+    private boolean openNextFile() throws IOException {
+        if (isExhausted) {
+            return false;
+        }
+        CacheSlice slice = files.consume();
+        if (slice == null) {
+            isExhausted = true;
+            return false;
         }
+        curSlice = slice;
+        slicePos = 0;
+        if (curIsFirstFile) {
+            slicePos = startOffset;
+            curIsFirstFile = false;
+        }
+        ByteBuffer window = slice.getWindow();
+        if (window != null && slicePos < window.limit()) {
+            window.position((int) slicePos);
+            curWindow = window;
+            return true;
+        }
+        return openCurFile();
+    }
+
+    /**
+     * Positions a file of the current slice at {@code slicePos}, past its window if it has one. Slices
+     * written in place into one file are all read through the descriptor opened for the first of them.
+     */
+    private boolean openCurFile() throws IOException {
+        if (curFile == null || !curSlice.isInPlace() || !curSlice.getFile().equals(curFileSource)) {
+            CloseUtil.close(curFile);
+            curFile = curSlice.open();
+            if (curFile == null) {
+                closeCurFile();
+                isExhausted = true;
+                return false;
+            }
+            curFileSource = curSlice.getFile();
+        }
+        isFileOpen = true;
+        long position = curSlice.getOffset() + slicePos;
+        if (curFile.getChannel().position() != position) {
+            curFile.getChannel().position(position);
+        }
+        return true;
+    }
+
+    /**
+     * Moves past the current slice, keeping its file open if the next slice may be in it too.
+     */
+    private void nextSlice() {
+        if (curSlice.isInPlace()) {
+            curSlice = null;
+            curWindow = null;
+            isFileOpen = false;
+        } else {
+            closeCurFile();
+        }
+    }
 
-        pos++;
-        return read;
+    private void closeCurFile() {
+        CloseUtil.close(curFile);
+        curFile = null;
+        curFileSource = null;
+        isFileOpen = false;
+        curWindow = null;
+        curSlice = null;
     }
 
     @Override
     public void close() throws IOException {
         super.close();
-        CloseUtil.close(bis);
+        closeCurFile();
+        files.close();
     }
 
-    public int getTotalLength() {
+    public long getTotalLength() {
         return totalLength;
     }
 }
@@ -0,0 +1,222 @@
+package com.ahao.videocacheserver.cache;
+
+import com.ahao.videocacheserver.HttpHeadParser;
+import com.ahao.videocacheserver.HttpResponse;
+import com.ahao.videocacheserver.ProxyCharset;
+import com.ahao.videocacheserver.util.CloseUtil;
+import com.ahao.videocacheserver.util.Constant;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Parsed origin response headers by host and url. The most recently used {@code maxEntries} stay in
+ * memory, so a warm request reads its headers without touching the disk. Changes are written to the
+ * header files behind the caller's back by a single thread, in the order they were made.
+ */
+class HeaderCache {
+    private volatile File rootDir;
+
+    private final Map<String, CachedHead> entries;
+    private final Map<String, CachedHead> pendingWrites = new LinkedHashMap<>();
+    private final ExecutorService persister = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "HeaderCache-persister");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    HeaderCache(File rootDir, final int maxEntries) {
+        this.rootDir = rootDir;
+        this.entries = new LinkedHashMap<String, CachedHead>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedHead> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    void setRootDir(File rootDir) {
+        this.rootDir = rootDir;
+    }
+
+    /**
+     * Returns a copy of the cached headers that the caller may change, or null if there are none in
+     * memory or on disk.
+     */
+    HttpResponse get(String host, String url) {
+        String key = getKey(host, url);
+        CachedHead entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null && pendingWrites.containsKey(key)) {
+                entry = pendingWrites.get(key);
+                return entry == null ? null : entry.toResponse();
+            }
+        }
+        if (entry == null) {
+            entry = load(host, url);
+            if (entry == null) {
+                return null;
+            }
+            synchronized (this) {
+                if (!entries.containsKey(key) && !pendingWrites.containsKey(key)) {
+                    entries.put(key, entry);
+                }
+            }
+        }
+        return entry.toResponse();
+    }
+
+    void put(String host, String url, HttpResponse response) {
+        String key = getKey(host, url);
+        CachedHead entry = new CachedHead(response);
+        synchronized (this) {
+            CachedHead old = entries.get(key);
+            if (old != null && old.isSame(entry)) {
+                return;
+            }
+            entries.put(key, entry);
+        }
+        schedulePersist(host, url, entry);
+    }
+
+    void remove(String host, String url) {
+        synchronized (this) {
+            entries.remove(getKey(host, url));
+        }
+        schedulePersist(host, url, null);
+    }
+
+    private void schedulePersist(final String host, final String url, CachedHead entry) {
+        final String key = getKey(host, url);
+        synchronized (this) {
+            boolean isScheduled = pendingWrites.containsKey(key);
+            pendingWrites.put(key, entry);
+            if (isScheduled) {
+                return;
+            }
+        }
+        persister.execute(new Runnable() {
+            @Override
+            public void run() {
+                CachedHead latest;
+                synchronized (HeaderCache.this) {
+                    latest = pendingWrites.remove(key);
+                }
+                persist(host, url, latest);
+            }
+        });
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void persist(String host, String url, CachedHead entry) {
+        File file = getFile(host, url);
+        if (entry == null) {
+            file.delete();
+            return;
+        }
+        File parent = file.getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+        File tempFile = new File(parent, file.getName() + CacheSlice.TEMP_SUFFIX);
+        try (FileOutputStream fileOutputStream = new FileOutputStream(tempFile)) {
+            fileOutputStream.write(entry.toResponse().getHeadText().getBytes(ProxyCharset.CUR_CHARSET));
+        } catch (IOException e) {
+            e.printStackTrace();
+            tempFile.delete();
+            return;
+        }
+        file.delete();
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+        }
+    }
+
+    private CachedHead load(String host, String url) {
+        File file = getFile(host, url);
+        if (!file.exists()) {
+            return null;
+        }
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            byte[] head = new byte[(int) file.length()];
+            int length = 0;
+            int read;
+            while (length < head.length && (read = inputStream.read(head, length, head.length - length)) != -1) {
+                length += read;
+            }
+            HttpResponse response = HttpResponse.parse(head, 0, length);
+            return response.getStatusCode() == 0 ? null : new CachedHead(response);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            CloseUtil.close(inputStream);
+        }
+    }
+
+    private File getFile(String host, String url) {
+        return new File(new File(rootDir, DiskLruCache.getTransformedString(host)), DiskLruCache.getTransformedString(url));
+    }
+
+    private static String getKey(String host, String url) {
+        return host + url;
+    }
+
+    /**
+     * An immutable snapshot of a response head, with the metadata that tells whether the resource
+     * changed parsed out of it.
+     */
+    private static class CachedHead {
+        private final String protocol;
+        private final int statusCode;
+        private final String statusString;
+        private final Map<String, String> headers;
+        private final long totalLength;
+
+        CachedHead(HttpResponse response) {
+            this.protocol = response.getProtocol();
+            this.statusCode = response.getStatusCode();
+            this.statusString = response.getStatusString();
+            this.headers = HttpHeadParser.newHeaders();
+            this.headers.putAll(response.getHeaders());
+            this.totalLength = response.getTotalLength();
+        }
+
+        /**
+         * Whether both describe the same version of the resource. Responses to different ranges of
+         * it only differ in their range headers, they are not written again.
+         */
+        boolean isSame(CachedHead other) {
+            return totalLength == other.totalLength
+                    && isEqual(headers.get(Constant.CONTENT_TYPE), other.headers.get(Constant.CONTENT_TYPE))
+                    && isEqual(headers.get(Constant.ETAG), other.headers.get(Constant.ETAG))
+                    && isEqual(headers.get(Constant.LAST_MODIFIED), other.headers.get(Constant.LAST_MODIFIED));
+        }
+
+        private static boolean isEqual(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        HttpResponse toResponse() {
+            HttpResponse response = new HttpResponse();
+            response.setProtocol(protocol);
+            response.setStatusCode(statusCode);
+            response.setStatusString(statusString);
+            response.getHeaders().putAll(headers);
+            return response;
+        }
+    }
+}
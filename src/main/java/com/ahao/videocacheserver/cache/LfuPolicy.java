@@ -0,0 +1,91 @@
+package com.ahao.videocacheserver.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Evicts the least frequently read file first, the least recently used one among equally frequent
+ * files. Files are bucketed by their read count, so a read is a move between two buckets. Admits every
+ * slice.
+ */
+public class LfuPolicy implements EvictionPolicy {
+    private final Map<String, Integer> frequencies = new HashMap<>();
+    private final TreeMap<Integer, Set<String>> buckets = new TreeMap<>();
+
+    @Override
+    public void onRequest(String url, int slice) {
+    }
+
+    @Override
+    public void onAdd(String path, int slice) {
+        if (!frequencies.containsKey(path)) {
+            frequencies.put(path, 1);
+            getBucket(1).add(path);
+        }
+    }
+
+    @Override
+    public void onAccess(String path, int slice) {
+        Integer frequency = frequencies.get(path);
+        if (frequency == null) {
+            return;
+        }
+        removeFromBucket(path, frequency);
+        frequencies.put(path, frequency + 1);
+        getBucket(frequency + 1).add(path);
+    }
+
+    @Override
+    public void onRemove(String path) {
+        Integer frequency = frequencies.remove(path);
+        if (frequency != null) {
+            removeFromBucket(path, frequency);
+        }
+    }
+
+    @Override
+    public List<String> getVictims(int count) {
+        List<String> ret = new ArrayList<>(count);
+        for (Set<String> bucket : buckets.values()) {
+            for (String path : bucket) {
+                if (ret.size() == count) {
+                    return ret;
+                }
+                ret.add(path);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean admit(String url, int slice, String victim) {
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        frequencies.clear();
+        buckets.clear();
+    }
+
+    private Set<String> getBucket(int frequency) {
+        Set<String> bucket = buckets.get(frequency);
+        if (bucket == null) {
+            bucket = new LinkedHashSet<>();
+            buckets.put(frequency, bucket);
+        }
+        return bucket;
+    }
+
+    private void removeFromBucket(String path, int frequency) {
+        Set<String> bucket = buckets.get(frequency);
+        if (bucket != null && bucket.remove(path) && bucket.isEmpty()) {
+            buckets.remove(frequency);
+        }
+    }
+}
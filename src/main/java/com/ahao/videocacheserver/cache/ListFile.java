@@ -1,9 +1,9 @@
 package com.ahao.videocacheserver.cache;
 
-import java.io.File;
+import java.io.IOException;
 
 public interface ListFile {
-    File consume();
+    CacheSlice consume() throws IOException;
 
-    void server(File file);
+    void close();
 }
@@ -0,0 +1,282 @@
+package com.ahao.videocacheserver.cache;
+
+import com.ahao.videocacheserver.util.CloseUtil;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The slices of one origin download, shared by every request that reads them. The writer publishes
+ * slices in order as it starts them, any number of {@link Reader}s can attach at their own offset and
+ * walk the slices at their own pace, reading below each slice's watermark while it is written and
+ * from disk once it is complete.
+ */
+public class LiveDownload {
+    public static final int DEFAULT_MAX_AHEAD_SLICES = 2;
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    /**
+     * Hears when the writer starts and stops waiting for the readers to catch up.
+     */
+    interface PauseListener {
+        void onPaused();
+
+        void onResumed();
+    }
+
+    private final List<CacheSlice> slices;
+    private final List<Reader> readers = new ArrayList<>();
+    private int published = 0;
+    private boolean isFinished = false;
+    private boolean isCancelled = false;
+    private final int maxAheadSlices;
+    private final CancelPolicy cancelPolicy;
+    private final CacheStats stats;
+    private Closeable source;
+    private PauseListener pauseListener;
+    private long orphanSince = 0;
+
+    public LiveDownload(List<CacheSlice> slices) {
+        this(slices, DEFAULT_MAX_AHEAD_SLICES, CancelPolicy.DETACH, new CacheStats());
+    }
+
+    /**
+     * @param maxAheadSlices how many slices the writer may run ahead of the slowest reader,
+     *                       {@link #UNBOUNDED} lets it download at origin speed
+     * @param cancelPolicy   what to do when the last reader detaches before the download is finished
+     */
+    public LiveDownload(List<CacheSlice> slices, int maxAheadSlices, CancelPolicy cancelPolicy, CacheStats stats) {
+        this.slices = slices;
+        this.maxAheadSlices = maxAheadSlices;
+        this.cancelPolicy = cancelPolicy;
+        this.stats = stats;
+    }
+
+    public List<CacheSlice> getSlices() {
+        return slices;
+    }
+
+    public long getStartByte() {
+        return slices.get(0).getKey().getStartByte();
+    }
+
+    public long getEndByte() {
+        return slices.get(slices.size() - 1).getKey().getEndByte();
+    }
+
+    public long getTotalLength() {
+        return getEndByte() - getStartByte() + 1;
+    }
+
+    public boolean contains(long position) {
+        return position >= getStartByte() && position <= getEndByte();
+    }
+
+    /**
+     * Attaches a reader that starts at the absolute byte {@code position} of the resource, or returns
+     * null if the position is outside of this download.
+     */
+    public synchronized Reader newReader(long position) {
+        if (!contains(position) || isCancelled) {
+            return null;
+        }
+        int index = 0;
+        while (slices.get(index).getKey().getEndByte() < position) {
+            index++;
+        }
+        Reader reader = new Reader(index, position - slices.get(index).getKey().getStartByte());
+        readers.add(reader);
+        addOrphanTime();
+        return reader;
+    }
+
+    /**
+     * Makes the next slice visible to readers. Waits while the writer is more than
+     * {@code maxAheadSlices} ahead of the slowest attached reader. A writer interrupted meanwhile, by a
+     * shutdown, cancels the download, its readers get the bytes written so far.
+     */
+    void publish(CacheSlice slice) {
+        Closeable closingSource = null;
+        synchronized (this) {
+            long waitStart = System.currentTimeMillis();
+            boolean isWaited = false;
+            while (published - getSlowestIndex() > maxAheadSlices && !isCancelled) {
+                if (!isWaited && pauseListener != null) {
+                    pauseListener.onPaused();
+                }
+                isWaited = true;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    isCancelled = true;
+                    closingSource = source;
+                    break;
+                }
+            }
+            if (isWaited) {
+                stats.addWriterWaitMillis(System.currentTimeMillis() - waitStart);
+                if (pauseListener != null) {
+                    pauseListener.onResumed();
+                }
+            }
+            if (slices.get(published) != slice) {
+                throw new IllegalStateException("slices must be published in order");
+            }
+            published++;
+            notifyAll();
+        }
+        CloseUtil.close(closingSource);
+    }
+
+    synchronized void setPauseListener(PauseListener pauseListener) {
+        this.pauseListener = pauseListener;
+    }
+
+    /**
+     * Hands the origin connection to the download, it is closed when the download is cancelled.
+     */
+    void setSource(Closeable source) {
+        synchronized (this) {
+            if (!isCancelled) {
+                this.source = source;
+                return;
+            }
+        }
+        CloseUtil.close(source);
+    }
+
+    /**
+     * Stops a download nobody reads, returns false if a reader is attached or it is already over.
+     */
+    boolean cancel() {
+        Closeable closingSource;
+        synchronized (this) {
+            if (!readers.isEmpty() || isFinished || isCancelled) {
+                return false;
+            }
+            isCancelled = true;
+            closingSource = source;
+            notifyAll();
+        }
+        CloseUtil.close(closingSource);
+        return true;
+    }
+
+    synchronized void finish() {
+        isFinished = true;
+        addOrphanTime();
+        notifyAll();
+    }
+
+    public synchronized boolean isCancelled() {
+        return isCancelled;
+    }
+
+    public synchronized boolean isFinished() {
+        return isFinished;
+    }
+
+    public synchronized int getReaderCount() {
+        return readers.size();
+    }
+
+    private int getSlowestIndex() {
+        int slowest = published;
+        for (Reader reader : readers) {
+            slowest = Math.min(slowest, reader.index);
+        }
+        return slowest;
+    }
+
+    private synchronized CacheSlice next(Reader reader) throws InterruptedIOException {
+        while (reader.index + 1 >= published && !isFinished) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("wait slice " + (reader.index + 1));
+            }
+        }
+        if (reader.index + 1 >= published) {
+            detach(reader);
+            return null;
+        }
+        reader.index++;
+        notifyAll();
+        return slices.get(reader.index);
+    }
+
+    private void detach(Reader reader) {
+        Closeable closingSource = null;
+        synchronized (this) {
+            if (!readers.remove(reader)) {
+                return;
+            }
+            if (isFinished || isWritten(reader.index)) {
+                notifyAll();
+                return;
+            }
+            stats.onReaderDetached();
+            if (readers.isEmpty()) {
+                if (cancelPolicy == CancelPolicy.ABORT) {
+                    isCancelled = true;
+                    closingSource = source;
+                    stats.onDownloadAborted();
+                } else {
+                    orphanSince = System.currentTimeMillis();
+                }
+            }
+            notifyAll();
+        }
+        CloseUtil.close(closingSource);
+    }
+
+    private boolean isWritten(int lastIndex) {
+        if (lastIndex < slices.size() - 1) {
+            return false;
+        }
+        CacheSlice last = slices.get(slices.size() - 1);
+        return last.getWritten() == last.getLength();
+    }
+
+    private void addOrphanTime() {
+        if (orphanSince > 0) {
+            stats.addOrphanWriteMillis(System.currentTimeMillis() - orphanSince);
+            orphanSince = 0;
+        }
+    }
+
+    public class Reader implements ListFile {
+        private int index;
+        private final long startOffset;
+
+        private Reader(int firstIndex, long startOffset) {
+            this.index = firstIndex - 1;
+            this.startOffset = startOffset;
+        }
+
+        /**
+         * Offset of the reader's start position inside the first slice it consumes.
+         */
+        public long getStartOffset() {
+            return startOffset;
+        }
+
+        public long getEndByte() {
+            return LiveDownload.this.getEndByte();
+        }
+
+        @Override
+        public CacheSlice consume() throws InterruptedIOException {
+            return next(this);
+        }
+
+        @Override
+        public void close() {
+            detach(this);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.ahao.videocacheserver.cache;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evicts the least recently added or read file first and admits every slice.
+ */
+public class LruPolicy implements EvictionPolicy {
+    private final Map<String, Boolean> files = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Override
+    public void onRequest(String url, int slice) {
+    }
+
+    @Override
+    public void onAdd(String path, int slice) {
+        files.put(path, Boolean.TRUE);
+    }
+
+    @Override
+    public void onAccess(String path, int slice) {
+        files.get(path);
+    }
+
+    @Override
+    public void onRemove(String path) {
+        files.remove(path);
+    }
+
+    @Override
+    public List<String> getVictims(int count) {
+        return getEldest(files, count);
+    }
+
+    @Override
+    public boolean admit(String url, int slice, String victim) {
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        files.clear();
+    }
+
+    static List<String> getEldest(Map<String, ?> files, int count) {
+        List<String> ret = new ArrayList<>(Math.min(count, files.size()));
+        for (String path : files.keySet()) {
+            if (ret.size() == count) {
+                break;
+            }
+            ret.add(path);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,182 @@
+package com.ahao.videocacheserver.cache;
+
+import com.ahao.videocacheserver.util.Constant;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the first {@code windowSize} bytes of hot slice files in direct buffers, outside the Java
+ * heap, so hits on intros and other much watched windows are served without reading the disk. Files
+ * are keyed by their journal path and evicted least recently used first once {@code maxSize} is
+ * reached. A file is loaded when it is written, if that fits without evicting anything, and after
+ * {@code promoteHits} lookups found it only on disk. Loading runs on a background thread.
+ */
+class MemoryCache {
+    private static final Logger logger = Logger.getLogger("MemoryCache");
+
+    // files whose disk hits are counted, the least recently hit are forgotten first
+    private static final int MAX_TRACKED_FILES = 4096;
+
+    private final long maxSize;
+    private final int windowSize;
+    private final int promoteHits;
+    private final CacheStats stats;
+    private final ExecutorService loader;
+
+    private final Map<String, ByteBuffer> windows = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> loading = new HashSet<>();
+    private final Map<String, Integer> diskHits = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_TRACKED_FILES;
+        }
+    };
+    private long size;
+
+    MemoryCache(long maxSize, int windowSize, int promoteHits, CacheStats stats) {
+        this.maxSize = maxSize;
+        this.windowSize = windowSize;
+        this.promoteHits = Math.max(1, promoteHits);
+        this.stats = stats;
+        this.loader = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "MemoryCache-loader");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Returns the window of the slice of {@code length} bytes at {@code offset} in {@code file} read to
+     * its start, or null if it is only on disk. A slice missed often enough is loaded for the next
+     * lookups.
+     */
+    synchronized ByteBuffer get(String path, File file, long offset, long length) {
+        ByteBuffer window = windows.get(path);
+        if (window != null) {
+            stats.onMemoryHit();
+            return window.asReadOnlyBuffer();
+        }
+        stats.onMemoryMiss();
+        Integer hits = diskHits.get(path);
+        hits = hits == null ? 1 : hits + 1;
+        if (hits >= promoteHits) {
+            diskHits.remove(path);
+            load(path, file, offset, length, true);
+        } else {
+            diskHits.put(path, hits);
+        }
+        return null;
+    }
+
+    /**
+     * Loads a slice just written, unless that would evict a window already held.
+     */
+    synchronized void offer(String path, File file, long offset, long length) {
+        if (size + Math.min(length, windowSize) <= maxSize) {
+            load(path, file, offset, length, false);
+        }
+    }
+
+    synchronized void remove(String path) {
+        loading.remove(path);
+        diskHits.remove(path);
+        ByteBuffer window = windows.remove(path);
+        if (window != null) {
+            size -= window.capacity();
+            stats.setMemorySize(size);
+        }
+    }
+
+    synchronized void clear() {
+        loading.clear();
+        diskHits.clear();
+        windows.clear();
+        size = 0;
+        stats.setMemorySize(0);
+    }
+
+    void shutdown() {
+        loader.shutdownNow();
+        clear();
+    }
+
+    private void load(final String path, final File file, final long offset, final long length,
+                      final boolean evict) {
+        if (windows.containsKey(path) || !loading.add(path)) {
+            return;
+        }
+        loader.execute(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer window = read(file, offset, length);
+                synchronized (MemoryCache.this) {
+                    // removed or cleared while reading
+                    if (!loading.remove(path) || window == null) {
+                        return;
+                    }
+                    if (evict) {
+                        evict(window.capacity());
+                    }
+                    if (size + window.capacity() > maxSize) {
+                        return;
+                    }
+                    windows.put(path, window);
+                    size += window.capacity();
+                    stats.setMemorySize(size);
+                }
+            }
+        });
+    }
+
+    private void evict(int length) {
+        Iterator<ByteBuffer> iterator = windows.values().iterator();
+        while (size + length > maxSize && iterator.hasNext()) {
+            size -= iterator.next().capacity();
+            iterator.remove();
+        }
+    }
+
+    private ByteBuffer read(File file, long offset, long length) {
+        int windowLength = (int) Math.min(length, windowSize);
+        if (windowLength <= 0 || windowLength > maxSize) {
+            return null;
+        }
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            FileChannel channel = inputStream.getChannel();
+            ByteBuffer window = ByteBuffer.allocateDirect(windowLength);
+            while (window.hasRemaining()) {
+                if (channel.read(window, offset + window.position()) <= 0) {
+                    return null;
+                }
+            }
+            window.flip();
+            return window;
+        } catch (IOException e) {
+            // evicted meanwhile
+            if (Constant.enableLog) {
+                logger.log(Level.WARNING, "load " + file, e);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package com.ahao.videocacheserver.cache;
+
+import com.ahao.videocacheserver.HttpRequest;
+import com.ahao.videocacheserver.HttpResponse;
+import com.ahao.videocacheserver.util.CloseUtil;
+import com.ahao.videocacheserver.util.ConnectionPool;
+import com.ahao.videocacheserver.util.Constant;
+import com.ahao.videocacheserver.util.RequestUtil;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Warms the segments of HLS media playlists. Every playlist that passes through the proxy leaves its
+ * ordered segment list here, and a request of segment {@code i} downloads segments {@code i+1} to
+ * {@code i+segments} into the cache in the background, unless they are there already. The downloads
+ * run on a few low priority threads with a bounded queue, a segment that does not fit in the queue,
+ * or comes while downloads of requests wait for a writer, is offered again by the next request. A
+ * download is not paced by the players that read it meanwhile.
+ * <p>
+ * Only segments on the playlist's own host are warmed, the player fetches the others without the
+ * proxy. A playlist reloaded with a new list, as live playlists are, replaces the old list.
+ */
+public class PlaylistPrefetcher {
+    private static final Logger logger = Logger.getLogger("PlaylistPrefetcher");
+
+    // playlists whose segments are followed, the least recently used are forgotten first
+    private static final int MAX_PLAYLISTS = 64;
+    private static final int THREAD_COUNT = 2;
+    private static final int QUEUE_SIZE = 16;
+
+    private final DiskLruCache cache;
+    private final int segments;
+    private final ExecutorService executor;
+
+    private final Map<String, Playlist> playlists = new LinkedHashMap<String, Playlist>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Playlist> eldest) {
+            if (size() <= MAX_PLAYLISTS) {
+                return false;
+            }
+            forget(eldest.getValue());
+            return true;
+        }
+    };
+    // the playlist listing each segment, by the cache key of the segment
+    private final Map<String, Playlist> playlistBySegment = new HashMap<>();
+
+    PlaylistPrefetcher(DiskLruCache cache, int segments) {
+        this.cache = cache;
+        this.segments = segments;
+        final AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PlaylistPrefetcher-" + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    private static class Playlist {
+        final String key;
+        final PlaylistStats stats = new PlaylistStats();
+        HttpRequest request;
+        List<String> segmentPaths = new ArrayList<>();
+        // the uri of each segment path, with its query
+        Map<String, String> segmentUrls = new HashMap<>();
+        // segment paths queued or downloading, and those downloaded in full
+        final Set<String> pending = new HashSet<>();
+        final Set<String> prefetched = new HashSet<>();
+
+        Playlist(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Records the segment uris of a media playlist, in order, as listed after each {@code #EXTINF}.
+     * {@code request} is the request of the playlist, after its host was resolved to the origin.
+     */
+    public synchronized void onPlaylist(HttpRequest request, List<String> segmentUris) {
+        String host = request.getHost();
+        String playlistPath = request.getUrlWithNoParam();
+        List<String> segmentPaths = new ArrayList<>();
+        Map<String, String> segmentUrls = new HashMap<>();
+        for (String uri : segmentUris) {
+            URI resolved = resolve(playlistPath, uri);
+            if (resolved == null) {
+                continue;
+            }
+            String path = resolved.getRawPath();
+            // ranges of one file listed as segments of their own
+            if (segmentPaths.isEmpty() || !segmentPaths.get(segmentPaths.size() - 1).equals(path)) {
+                segmentPaths.add(path);
+                segmentUrls.put(path, resolved.getRawQuery() == null ? path : path + "?" + resolved.getRawQuery());
+            }
+        }
+        if (segmentPaths.isEmpty()) {
+            return;
+        }
+        String key = getKey(host, playlistPath);
+        Playlist playlist = playlists.get(key);
+        if (playlist == null) {
+            playlist = new Playlist(key);
+            playlists.put(key, playlist);
+        }
+        for (String path : playlist.segmentPaths) {
+            playlistBySegment.remove(getKey(host, path));
+        }
+        playlist.segmentPaths = segmentPaths;
+        playlist.segmentUrls = segmentUrls;
+        playlist.request = copyRequest(request);
+        for (String path : segmentPaths) {
+            playlistBySegment.put(getKey(host, path), playlist);
+        }
+        playlist.prefetched.retainAll(segmentPaths);
+    }
+
+    /**
+     * Counts a request of a segment against its playlist and warms the segments after it.
+     */
+    public synchronized void onSegmentRequest(String host, String url) {
+        Playlist playlist = playlistBySegment.get(getKey(host, url));
+        if (playlist == null) {
+            return;
+        }
+        // marks the playlist as recently used, the map is in access order
+        playlists.get(playlist.key);
+        playlist.stats.onSegmentRequest(playlist.prefetched.remove(url));
+        int index = playlist.segmentPaths.indexOf(url);
+        int last = Math.min(index + segments, playlist.segmentPaths.size() - 1);
+        for (int i = index + 1; i <= last; i++) {
+            String path = playlist.segmentPaths.get(i);
+            if (!playlist.prefetched.contains(path) && !playlist.pending.contains(path)) {
+                submit(playlist, host, path, playlist.segmentUrls.get(path));
+            }
+        }
+    }
+
+    /**
+     * The counters of each playlist followed, by its host and path.
+     */
+    public synchronized Map<String, PlaylistStats> getStats() {
+        Map<String, PlaylistStats> stats = new LinkedHashMap<>();
+        for (Playlist playlist : playlists.values()) {
+            stats.put(playlist.key, playlist.stats);
+        }
+        return stats;
+    }
+
+    private void submit(final Playlist playlist, final String host, final String path, String url) {
+        final HttpRequest request = copyRequest(playlist.request);
+        request.setUrl(url);
+        playlist.pending.add(path);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean isPrefetched = false;
+                    try {
+                        isPrefetched = !cache.isWriterBusy() && prefetch(request, host, path);
+                    } finally {
+                        onFinished(playlist, path, isPrefetched);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            playlist.pending.remove(path);
+        }
+    }
+
+    private synchronized void onFinished(Playlist playlist, String path, boolean isPrefetched) {
+        playlist.pending.remove(path);
+        if (isPrefetched && playlist.segmentPaths.contains(path)) {
+            playlist.prefetched.add(path);
+            playlist.stats.onPrefetched();
+        }
+    }
+
+    /**
+     * Downloads a whole segment into the cache, returns whether it was this call that cached all of it.
+     */
+    private boolean prefetch(HttpRequest request, String host, String path) {
+        HttpResponse headers = cache.getCacheHeaders(host, path);
+        if (headers != null && headers.getTotalLength() > 0
+                && cache.contains(new SegmentInfo(host, path, 0, headers.getTotalLength() - 1))) {
+            return false;
+        }
+        request.setMethod(Constant.METHOD_GET);
+        request.getHeaders().remove(Constant.RANGE);
+        HttpResponse response = RequestUtil.getHttpResponseFromNet(request);
+        if (response == null || !response.isOK()) {
+            if (response != null) {
+                CloseUtil.close(response.getContent());
+            }
+            if (Constant.enableLog) {
+                logger.log(Level.WARNING, "segment prefetch failed : " + (response == null ? path : response.getHeadText()));
+            }
+            return false;
+        }
+        final InputStream body = response.getContent();
+        long totalLength = response.getTotalLength();
+        LiveDownload download = null;
+        if (totalLength > 0) {
+            cache.cacheHeaders(host, path, response);
+            download = cache.reserve(new SegmentInfo(host, path, 0, totalLength - 1), false);
+        }
+        if (download == null) {
+            // length unknown, being downloaded meanwhile, or no room for it
+            ConnectionPool.abort(body);
+            return false;
+        }
+        cache.write(download, body, new Closeable() {
+            @Override
+            public void close() {
+                ConnectionPool.abort(body);
+            }
+        });
+        boolean isComplete = download.getTotalLength() == totalLength;
+        for (CacheSlice slice : download.getSlices()) {
+            isComplete = isComplete && slice.isComplete();
+        }
+        return isComplete;
+    }
+
+    private void forget(Playlist playlist) {
+        for (String path : playlist.segmentPaths) {
+            playlistBySegment.remove(getKey(playlist.request.getHost(), path));
+        }
+    }
+
+    synchronized void shutdown() {
+        executor.shutdownNow();
+        playlists.clear();
+        playlistBySegment.clear();
+    }
+
+    /**
+     * A segment uri resolved against the playlist at {@code playlistPath}, or null if it is on another
+     * host.
+     */
+    private static URI resolve(String playlistPath, String uri) {
+        try {
+            URI segment = new URI(uri.trim());
+            if (segment.isAbsolute() || segment.getRawAuthority() != null) {
+                return null;
+            }
+            URI resolved = new URI(playlistPath).resolve(segment);
+            return resolved.getRawPath() == null || resolved.getRawPath().isEmpty() ? null : resolved;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    private static String getKey(String host, String path) {
+        return host + path;
+    }
+
+    private static HttpRequest copyRequest(HttpRequest request) {
+        try {
+            return (HttpRequest) request.clone();
+        } catch (CloneNotSupportedException e) {
+            return request;
+        }
+    }
+}
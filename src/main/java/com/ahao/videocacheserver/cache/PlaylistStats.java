@@ -0,0 +1,58 @@
+package com.ahao.videocacheserver.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How well the segments of one HLS playlist were warmed ahead of the player.
+ */
+public class PlaylistStats {
+    private final AtomicLong segmentRequests = new AtomicLong();
+    private final AtomicLong prefetchedSegments = new AtomicLong();
+    private final AtomicLong prefetchHits = new AtomicLong();
+
+    void onSegmentRequest(boolean isPrefetched) {
+        segmentRequests.incrementAndGet();
+        if (isPrefetched) {
+            prefetchHits.incrementAndGet();
+        }
+    }
+
+    void onPrefetched() {
+        prefetchedSegments.incrementAndGet();
+    }
+
+    /**
+     * Requests of segments listed in the playlist.
+     */
+    public long getSegmentRequests() {
+        return segmentRequests.get();
+    }
+
+    /**
+     * Segments the prefetch downloaded in full.
+     */
+    public long getPrefetchedSegments() {
+        return prefetchedSegments.get();
+    }
+
+    /**
+     * Requests of a segment the prefetch had already downloaded.
+     */
+    public long getPrefetchHits() {
+        return prefetchHits.get();
+    }
+
+    public double getHitRate() {
+        long requests = segmentRequests.get();
+        return requests == 0 ? 0 : (double) prefetchHits.get() / requests;
+    }
+
+    @Override
+    public String toString() {
+        return "PlaylistStats{" +
+                "segmentRequests=" + segmentRequests +
+                ", prefetchedSegments=" + prefetchedSegments +
+                ", prefetchHits=" + prefetchHits +
+                '}';
+    }
+}
@@ -0,0 +1,66 @@
+package com.ahao.videocacheserver.cache;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the first {@code protectedSlices} slices of every url over the rest. They are what a player
+ * needs before its first frame, while a slice from the middle of a video only matters to someone who
+ * seeks there. Files are kept in two least recently used orders, the protected files are only evicted
+ * once no other file is left. Admits every slice.
+ */
+public class SegmentAwarePolicy implements EvictionPolicy {
+    private final int protectedSlices;
+    private final Map<String, Boolean> heads = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Boolean> rest = new LinkedHashMap<>(16, 0.75f, true);
+
+    public SegmentAwarePolicy() {
+        this(1);
+    }
+
+    public SegmentAwarePolicy(int protectedSlices) {
+        this.protectedSlices = protectedSlices;
+    }
+
+    @Override
+    public void onRequest(String url, int slice) {
+    }
+
+    @Override
+    public void onAdd(String path, int slice) {
+        (slice < protectedSlices ? heads : rest).put(path, Boolean.TRUE);
+    }
+
+    @Override
+    public void onAccess(String path, int slice) {
+        (slice < protectedSlices ? heads : rest).get(path);
+    }
+
+    @Override
+    public void onRemove(String path) {
+        if (heads.remove(path) == null) {
+            rest.remove(path);
+        }
+    }
+
+    @Override
+    public List<String> getVictims(int count) {
+        List<String> victims = LruPolicy.getEldest(rest, count);
+        if (victims.size() < count) {
+            victims.addAll(LruPolicy.getEldest(heads, count - victims.size()));
+        }
+        return victims;
+    }
+
+    @Override
+    public boolean admit(String url, int slice, String victim) {
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        heads.clear();
+        rest.clear();
+    }
+}
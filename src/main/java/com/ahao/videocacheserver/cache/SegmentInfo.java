@@ -4,11 +4,11 @@ import java.util.Objects;
 
 public class SegmentInfo {
     private String url;
-    private int startByte;
-    private int endByte;
+    private long startByte;
+    private long endByte;
     private String host;
 
-    public SegmentInfo(String host, String url, int startByte, int endByte) {
+    public SegmentInfo(String host, String url, long startByte, long endByte) {
         this.host = host;
         this.url = url;
         this.startByte = startByte;
@@ -38,19 +38,19 @@ public class SegmentInfo {
         this.url = url;
     }
 
-    public int getStartByte() {
+    public long getStartByte() {
         return startByte;
     }
 
-    public void setStartByte(int startByte) {
+    public void setStartByte(long startByte) {
         this.startByte = startByte;
     }
 
-    public int getEndByte() {
+    public long getEndByte() {
         return endByte;
     }
 
-    public void setEndByte(int endByte) {
+    public void setEndByte(long endByte) {
         this.endByte = endByte;
     }
 
@@ -58,7 +58,7 @@ public class SegmentInfo {
         return url;
     }
 
-    public int getLength() {
+    public long getLength() {
         return endByte - startByte + 1;
     }
 
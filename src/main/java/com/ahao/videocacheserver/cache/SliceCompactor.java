@@ -0,0 +1,137 @@
+package com.ahao.videocacheserver.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the merging of slice fragments on one background thread, away from requests. A task only
+ * starts once the cache has been idle for {@code idleMillis}: no download running or waiting and no
+ * lookup meanwhile. Tasks are keyed, a key submitted again before its task ran is only run once.
+ * Copies are throttled to {@code bytesPerSecond}, and replaced fragments are deleted after a delay
+ * so readers that already looked them up can still open them.
+ */
+class SliceCompactor {
+    static final String TEMP_SUFFIX = ".compact";
+
+    private static final int COPY_CHUNK = 256 * 1024;
+
+    private final WriterScheduler writerScheduler;
+    private final long idleMillis;
+    private final int bytesPerSecond;
+    private final long deleteDelayMillis;
+    private final ScheduledExecutorService executor;
+
+    private final Map<String, Runnable> pending = new LinkedHashMap<>();
+    private boolean isScheduled;
+    private volatile long lastActivityMillis = System.currentTimeMillis();
+
+    SliceCompactor(WriterScheduler writerScheduler, long idleMillis, int bytesPerSecond, long deleteDelayMillis) {
+        this.writerScheduler = writerScheduler;
+        this.idleMillis = idleMillis;
+        this.bytesPerSecond = Math.max(1, bytesPerSecond);
+        this.deleteDelayMillis = deleteDelayMillis;
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DiskLruCache-compactor");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Postpones compaction, called on every lookup and download.
+     */
+    void onActivity() {
+        lastActivityMillis = System.currentTimeMillis();
+    }
+
+    synchronized void submit(String key, Runnable task) {
+        pending.put(key, task);
+        if (!isScheduled) {
+            isScheduled = true;
+            schedule(idleMillis);
+        }
+    }
+
+    private void schedule(long delayMillis) {
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runNext();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void runNext() {
+        long idle = System.currentTimeMillis() - lastActivityMillis;
+        if (idle < idleMillis || !writerScheduler.isIdle()) {
+            schedule(Math.max(idleMillis - idle, idleMillis / 4));
+            return;
+        }
+        Runnable task;
+        synchronized (this) {
+            Iterator<Runnable> iterator = pending.values().iterator();
+            if (!iterator.hasNext()) {
+                isScheduled = false;
+                return;
+            }
+            task = iterator.next();
+            iterator.remove();
+        }
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        schedule(0);
+    }
+
+    /**
+     * Copies {@code count} bytes from {@code position} of {@code source} to the end of {@code target},
+     * no faster than the configured rate.
+     */
+    long copy(File source, long position, long count, FileChannel target) throws IOException {
+        long copied = 0;
+        long startMillis = System.currentTimeMillis();
+        try (FileInputStream inputStream = new FileInputStream(source)) {
+            FileChannel channel = inputStream.getChannel();
+            while (copied < count) {
+                long transferred = channel.transferTo(position + copied, Math.min(COPY_CHUNK, count - copied), target);
+                if (transferred <= 0) {
+                    break;
+                }
+                copied += transferred;
+                long expectedMillis = copied * 1000 / bytesPerSecond;
+                long elapsedMillis = System.currentTimeMillis() - startMillis;
+                if (expectedMillis > elapsedMillis) {
+                    try {
+                        Thread.sleep(expectedMillis - elapsedMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("compaction interrupted");
+                    }
+                }
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * Runs {@code deletion} once readers had time to open the replaced fragments.
+     */
+    void deleteLater(Runnable deletion) {
+        executor.schedule(deletion, deleteDelayMillis, TimeUnit.MILLISECONDS);
+    }
+}
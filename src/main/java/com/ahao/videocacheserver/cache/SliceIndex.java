@@ -0,0 +1,178 @@
+package com.ahao.videocacheserver.cache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The completed slice files of every cached url, kept in memory so a lookup does not list or stat the
+ * url's directory. Urls are keyed by their directory under the content root and their files are
+ * grouped by the slice they fall in, sorted by slice start. The write path keeps it up to date and
+ * {@link CacheJournal} loads it at startup.
+ */
+class SliceIndex {
+    private final int cacheSlice;
+    private final Map<String, TreeMap<Integer, List<CachedRange>>> urls = new HashMap<>();
+
+    SliceIndex(int cacheSlice) {
+        this.cacheSlice = cacheSlice;
+    }
+
+    synchronized void clear() {
+        urls.clear();
+    }
+
+    synchronized void add(String hostDir, String urlDir, long start, long end) {
+        add(getKey(hostDir, urlDir), new CachedRange(start, end));
+    }
+
+    private void add(String key, CachedRange range) {
+        TreeMap<Integer, List<CachedRange>> slices = urls.get(key);
+        if (slices == null) {
+            slices = new TreeMap<>();
+            urls.put(key, slices);
+        }
+        int slice = (int) (range.start / cacheSlice);
+        List<CachedRange> ranges = slices.get(slice);
+        if (ranges == null) {
+            ranges = new ArrayList<>(1);
+            slices.put(slice, ranges);
+        }
+        ranges.remove(range);
+        ranges.add(range);
+    }
+
+    /**
+     * Forgets the slice file {@code file}, which lives at {@code content/host/url/start_end}.
+     */
+    synchronized void remove(File file) {
+        CachedRange range = CachedRange.parse(file.getName());
+        File urlDir = file.getParentFile();
+        if (range == null || urlDir == null || urlDir.getParentFile() == null) {
+            return;
+        }
+        String key = getKey(urlDir.getParentFile().getName(), urlDir.getName());
+        TreeMap<Integer, List<CachedRange>> slices = urls.get(key);
+        if (slices == null) {
+            return;
+        }
+        int slice = (int) (range.start / cacheSlice);
+        List<CachedRange> ranges = slices.get(slice);
+        if (ranges != null && ranges.remove(range) && ranges.isEmpty()) {
+            slices.remove(slice);
+            if (slices.isEmpty()) {
+                urls.remove(key);
+            }
+        }
+    }
+
+    synchronized boolean contains(String hostDir, String urlDir, CachedRange range) {
+        TreeMap<Integer, List<CachedRange>> slices = urls.get(getKey(hostDir, urlDir));
+        if (slices == null) {
+            return false;
+        }
+        List<CachedRange> ranges = slices.get((int) (range.start / cacheSlice));
+        return ranges != null && ranges.contains(range);
+    }
+
+    /**
+     * Returns a cached file range that holds all of {@code [start, end]}, both in the same slice, or
+     * null if no single file does.
+     */
+    synchronized CachedRange find(String hostDir, String urlDir, long start, long end) {
+        TreeMap<Integer, List<CachedRange>> slices = urls.get(getKey(hostDir, urlDir));
+        if (slices == null) {
+            return null;
+        }
+        List<CachedRange> ranges = slices.get((int) (start / cacheSlice));
+        if (ranges == null) {
+            return null;
+        }
+        CachedRange best = null;
+        for (CachedRange range : ranges) {
+            if (range.start <= start && range.end >= end && (best == null || range.getLength() > best.getLength())) {
+                best = range;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * All cached file ranges of a url, sorted by slice.
+     */
+    synchronized List<CachedRange> list(String hostDir, String urlDir) {
+        TreeMap<Integer, List<CachedRange>> slices = urls.get(getKey(hostDir, urlDir));
+        if (slices == null) {
+            return Collections.emptyList();
+        }
+        List<CachedRange> ret = new ArrayList<>();
+        for (List<CachedRange> ranges : slices.values()) {
+            ret.addAll(ranges);
+        }
+        return ret;
+    }
+
+    /**
+     * The urls with cached ranges, as {@code hostDir/urlDir}.
+     */
+    synchronized List<String> getUrls() {
+        return new ArrayList<>(urls.keySet());
+    }
+
+    private static String getKey(String hostDir, String urlDir) {
+        return hostDir + "/" + urlDir;
+    }
+
+    static class CachedRange {
+        final long start;
+        final long end;
+
+        CachedRange(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Parses a slice file name {@code start_end}, returns null for anything else.
+         */
+        static CachedRange parse(String name) {
+            int separator = name.indexOf('_');
+            if (separator <= 0 || separator == name.length() - 1) {
+                return null;
+            }
+            try {
+                long start = Long.parseLong(name.substring(0, separator));
+                long end = Long.parseLong(name.substring(separator + 1));
+                return end >= start && start >= 0 ? new CachedRange(start, end) : null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        long getLength() {
+            return end - start + 1;
+        }
+
+        String getFileName() {
+            return start + "_" + end;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            CachedRange that = (CachedRange) o;
+            return start == that.start && end == that.end;
+        }
+
+        @Override
+        public int hashCode() {
+            long hash = 31 * start + end;
+            return (int) (hash ^ (hash >>> 32));
+        }
+    }
+}
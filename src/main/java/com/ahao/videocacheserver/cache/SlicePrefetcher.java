@@ -0,0 +1,342 @@
+package com.ahao.videocacheserver.cache;
+
+import com.ahao.videocacheserver.HttpRequest;
+import com.ahao.videocacheserver.HttpResponse;
+import com.ahao.videocacheserver.util.CloseUtil;
+import com.ahao.videocacheserver.util.ConnectionPool;
+import com.ahao.videocacheserver.util.Constant;
+import com.ahao.videocacheserver.util.RequestUtil;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads ahead of viewers that play a url in order, so the next slice is on disk, or on its way, when
+ * the player gets there instead of costing an origin round trip at every slice boundary.
+ * <p>
+ * A url is played in order once a response of it that reaches into the next slice is read, or a
+ * request starts where the previous one left off. From then on each slice the viewer enters has the
+ * next {@code K} slices fetched behind it. {@code K} is the rate the viewer reads at over the rate the
+ * origin sent read-ahead at, rounded up and at most {@code maxSlices}, so a slow origin is asked
+ * further ahead.
+ * <p>
+ * Read-ahead runs on one low priority writer of its own and gives way while downloads of requests
+ * wait for a writer. It writes at the speed of the origin, a viewer who reads a slice it is
+ * downloading and pauses does not hold it up. A request elsewhere in the url or a response closed before its end is a seek or
+ * a viewer gone, the read-ahead of the url that nobody reads yet is cancelled.
+ */
+public class SlicePrefetcher {
+    private static final Logger logger = Logger.getLogger("SlicePrefetcher");
+
+    // urls whose playback is followed, the least recently requested are forgotten first
+    private static final int MAX_SESSIONS = 256;
+    // weight of the newest sample in the moving averages of the rates
+    private static final double RATE_WEIGHT = 0.3;
+    // shorter downloads say more about the latency of the origin than about its throughput
+    private static final long MIN_RATE_SAMPLE_BYTES = 256 * 1024;
+
+    private final DiskLruCache cache;
+    private final int cacheSlice;
+    private final int maxSlices;
+    private final CacheStats stats;
+    private final WriterScheduler scheduler;
+
+    private final Map<String, Session> sessions = new LinkedHashMap<String, Session>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+            if (size() <= MAX_SESSIONS) {
+                return false;
+            }
+            cancel(eldest.getValue());
+            eldest.getValue().isForgotten = true;
+            return true;
+        }
+    };
+    // bytes per millisecond the origin of each host sent read-ahead at
+    private final Map<String, Double> originRates = new HashMap<>();
+
+    SlicePrefetcher(DiskLruCache cache, int cacheSlice, int maxSlices, CacheStats stats) {
+        this.cache = cache;
+        this.cacheSlice = cacheSlice;
+        this.maxSlices = maxSlices;
+        this.stats = stats;
+        this.scheduler = new WriterScheduler("DiskLruCache-prefetch-", 1, 1, Thread.MIN_PRIORITY, null);
+    }
+
+    private static class Session {
+        final String host;
+        final String url;
+        HttpRequest request;
+        long urlTotalLength;
+        // the next byte the viewer reads, and the last byte of its latest request
+        long position;
+        long requestEnd = -1;
+        // bytes per millisecond, 0 until the viewer went through a slice
+        double readRate;
+        long markPosition;
+        long markTime;
+        // the last byte read-ahead was asked for
+        long prefetchedEnd = -1;
+        // bumped by a cancel, read-ahead of an older generation stops
+        int generation;
+        boolean isForgotten;
+        final List<LiveDownload> downloads = new ArrayList<>();
+
+        Session(String host, String url) {
+            this.host = host;
+            this.url = url;
+        }
+    }
+
+    /**
+     * Reports the body of one response to the read-ahead of its url.
+     */
+    public class Playback implements StitchedDataStream.ProgressListener {
+        private final Session session;
+        private final long end;
+        private long slice;
+
+        private Playback(Session session, SegmentInfo range) {
+            this.session = session;
+            this.end = range.getEndByte();
+            long first = range.getStartByte() / cacheSlice;
+            // a range reaching into the next slice is read ahead of from its first read
+            this.slice = end >= (first + 1) * cacheSlice ? -1 : first;
+        }
+
+        @Override
+        public void onProgress(long position) {
+            long current = position / cacheSlice;
+            if (current != slice) {
+                boolean isCrossed = slice >= 0;
+                slice = current;
+                onSliceEntered(session, position, isCrossed);
+            }
+        }
+
+        @Override
+        public void onClose(long position) {
+            if (position <= end) {
+                onLeft(session);
+            }
+        }
+    }
+
+    /**
+     * Follows a request of {@code range}. A request that goes on from the viewer's last position reads
+     * ahead of it right away, any other request of the url cancels the read-ahead nobody reads yet.
+     */
+    public synchronized Playback onRequest(HttpRequest request, SegmentInfo range, long urlTotalLength) {
+        String key = range.getHost() + "/" + range.getUrl();
+        Session session = sessions.get(key);
+        if (session == null) {
+            session = new Session(range.getHost(), range.getUrl());
+            sessions.put(key, session);
+        }
+        long start = range.getStartByte();
+        boolean isSequential = session.requestEnd >= 0
+                && (start == session.requestEnd + 1 || Math.abs(start - session.position) <= cacheSlice);
+        if (!isSequential) {
+            cancel(session);
+        }
+        session.request = copyRequest(request);
+        session.urlTotalLength = urlTotalLength;
+        session.position = start;
+        session.requestEnd = range.getEndByte();
+        session.markPosition = start;
+        session.markTime = System.currentTimeMillis();
+        if (isSequential) {
+            schedule(session);
+        }
+        return new Playback(session, range);
+    }
+
+    private synchronized void onSliceEntered(Session session, long position, boolean isCrossed) {
+        if (session.isForgotten) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (isCrossed && now > session.markTime && position > session.markPosition) {
+            session.readRate = average(session.readRate,
+                    (double) (position - session.markPosition) / (now - session.markTime));
+        }
+        session.markPosition = position;
+        session.markTime = now;
+        session.position = position;
+        schedule(session);
+    }
+
+    private synchronized void onLeft(Session session) {
+        if (!session.isForgotten) {
+            cancel(session);
+        }
+    }
+
+    /**
+     * Asks for the slices after the one the viewer is in that are not asked for yet.
+     */
+    private void schedule(final Session session) {
+        long first = (session.position / cacheSlice + 1) * cacheSlice;
+        long last = Math.min(first + (long) getAheadSlices(session) * cacheSlice, session.urlTotalLength) - 1;
+        final long from = Math.max(first, session.prefetchedEnd + 1);
+        final long to = last;
+        if (from > to) {
+            return;
+        }
+        session.prefetchedEnd = to;
+        final int generation = session.generation;
+        scheduler.submit(session.host, new Runnable() {
+            @Override
+            public void run() {
+                prefetch(session, generation, from, to);
+            }
+        });
+    }
+
+    private int getAheadSlices(Session session) {
+        Double originRate = originRates.get(session.host);
+        if (originRate == null || session.readRate <= 0) {
+            return 1;
+        }
+        int ahead = (int) Math.ceil(session.readRate / originRate);
+        return Math.max(1, Math.min(maxSlices, ahead));
+    }
+
+    /**
+     * Downloads the bytes from {@code from} to {@code to} that are neither on disk nor on their way,
+     * on the read-ahead thread.
+     */
+    private void prefetch(Session session, int generation, long from, long to) {
+        long position = from;
+        while (position <= to) {
+            HttpRequest request;
+            synchronized (this) {
+                if (session.generation != generation) {
+                    return;
+                }
+                if (cache.isWriterBusy()) {
+                    // asked for again when the viewer enters the next slice
+                    session.prefetchedEnd = Math.min(session.prefetchedEnd, position - 1);
+                    return;
+                }
+                request = session.request;
+            }
+            long sliceEnd = Math.min((position / cacheSlice + 1) * cacheSlice - 1, to);
+            if (cache.contains(new SegmentInfo(session.host, session.url, position, sliceEnd))) {
+                position = sliceEnd + 1;
+                continue;
+            }
+            long missingEnd = sliceEnd;
+            while (missingEnd < to) {
+                long nextEnd = Math.min(missingEnd + cacheSlice, to);
+                if (cache.contains(new SegmentInfo(session.host, session.url, missingEnd + 1, nextEnd))) {
+                    break;
+                }
+                missingEnd = nextEnd;
+            }
+            LiveDownload download = cache.reserve(new SegmentInfo(session.host, session.url, position, missingEnd), false);
+            if (download == null) {
+                // downloading meanwhile, or no room for it
+                position = sliceEnd + 1;
+                continue;
+            }
+            synchronized (this) {
+                if (session.generation != generation) {
+                    cache.abort(download);
+                    return;
+                }
+                session.downloads.add(download);
+            }
+            boolean isComplete = fetch(request, download);
+            synchronized (this) {
+                session.downloads.remove(download);
+            }
+            if (!isComplete) {
+                return;
+            }
+            position = download.getEndByte() + 1;
+        }
+    }
+
+    private boolean fetch(HttpRequest request, LiveDownload download) {
+        HttpRequest rangeRequest = copyRequest(request);
+        rangeRequest.setMethod(Constant.METHOD_GET);
+        rangeRequest.getHeaders().put(Constant.RANGE,
+                String.format("bytes=%d-%d", download.getStartByte(), download.getEndByte()));
+        HttpResponse response = RequestUtil.getHttpResponseFromNet(rangeRequest);
+        if (response == null || !response.isOK()) {
+            if (response != null) {
+                CloseUtil.close(response.getContent());
+            }
+            cache.abort(download);
+            if (Constant.enableLog) {
+                logger.log(Level.WARNING, "read-ahead failed : " + (response == null ? null : response.getHeadText()));
+            }
+            return false;
+        }
+        final InputStream body = response.getContent();
+        long startTime = System.currentTimeMillis();
+        cache.write(download, body, new Closeable() {
+            @Override
+            public void close() {
+                ConnectionPool.abort(body);
+            }
+        });
+        long elapsed = System.currentTimeMillis() - startTime;
+        long written = 0;
+        boolean isComplete = true;
+        for (CacheSlice slice : download.getSlices()) {
+            written += slice.getWritten();
+            isComplete = isComplete && slice.isComplete();
+        }
+        stats.onPrefetched(written);
+        if (isComplete && written >= MIN_RATE_SAMPLE_BYTES && elapsed > 0) {
+            synchronized (this) {
+                Double rate = originRates.get(download.getSlices().get(0).getKey().getHost());
+                originRates.put(download.getSlices().get(0).getKey().getHost(),
+                        average(rate == null ? 0 : rate, (double) written / elapsed));
+            }
+        }
+        return isComplete;
+    }
+
+    /**
+     * Stops the read-ahead of a url, except the downloads a viewer already reads.
+     */
+    private void cancel(Session session) {
+        session.generation++;
+        session.prefetchedEnd = -1;
+        for (LiveDownload download : session.downloads) {
+            if (download.cancel()) {
+                stats.onPrefetchCancelled();
+            }
+        }
+    }
+
+    synchronized void shutdown() {
+        for (Session session : sessions.values()) {
+            cancel(session);
+        }
+        sessions.clear();
+        scheduler.shutdown();
+    }
+
+    private static double average(double average, double sample) {
+        return average <= 0 ? sample : average + RATE_WEIGHT * (sample - average);
+    }
+
+    private static HttpRequest copyRequest(HttpRequest request) {
+        try {
+            return (HttpRequest) request.clone();
+        } catch (CloneNotSupportedException e) {
+            return request;
+        }
+    }
+}
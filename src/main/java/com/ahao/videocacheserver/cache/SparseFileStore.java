@@ -0,0 +1,331 @@
+package com.ahao.videocacheserver.cache;
+
+import com.ahao.videocacheserver.util.CloseUtil;
+import com.ahao.videocacheserver.util.Constant;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The files of {@link StorageFormat#SPARSE_FILE}: every url directory holds one {@code data} file with
+ * each cached byte at its offset in the video, and a {@code ranges} file listing the cached ranges, one
+ * {@code start_end} per line. The ranges are the same the journal and the {@link SliceIndex} know, the
+ * list only lets a cache without a journal find them again.
+ * <p>
+ * The data file grows with the slices written into it. The hole a seek leaves before a range is never
+ * written and takes no blocks on a file system that keeps files sparse, so it costs the cache nothing.
+ * Space is only given back from the end of the file, by truncating it, since there is no portable way
+ * to punch a hole; the cache evicts a range together with the ranges after it. Bytes that were written
+ * but that no range holds, from slices that failed part way, are counted as {@link #getSlack() slack}
+ * until a range covers them or the file is cut before them. Truncation and deletion wait a while, like
+ * replaced fragments do, for readers that looked a range up before it went.
+ */
+class SparseFileStore {
+    private static final Logger logger = Logger.getLogger("SparseFileStore");
+
+    static final String DATA_NAME = "data";
+    static final String RANGES_NAME = "ranges";
+
+    private static final String RANGES_TEMP_NAME = RANGES_NAME + ".tmp";
+
+    private static class DataFile {
+        List<SliceIndex.CachedRange> ranges = Collections.emptyList();
+        // slices being written, the file must not be cut short of them or deleted
+        final List<SegmentInfo> writing = new ArrayList<>();
+        // bytes written by slices that failed part way, as {start, end}
+        final List<long[]> orphans = new ArrayList<>();
+        long slack;
+        boolean isShrinkPending;
+    }
+
+    // by url directory
+    private final Map<String, DataFile> dataFiles = new HashMap<>();
+    private final AtomicLong totalSlack = new AtomicLong();
+
+    static File getDataFile(File urlDir) {
+        return new File(urlDir, DATA_NAME);
+    }
+
+    /**
+     * Bytes written into the data files that neither a range nor a slice being written holds.
+     */
+    long getSlack() {
+        return totalSlack.get();
+    }
+
+    /**
+     * Creates the data file of a url for {@code key} about to be written. The caller holds the write
+     * lock of the url.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    synchronized boolean prepare(File urlDir, SegmentInfo key) {
+        File file = getDataFile(urlDir);
+        try {
+            // false if the url has a data file already
+            file.createNewFile();
+        } catch (IOException e) {
+            if (Constant.enableLog) {
+                logger.log(Level.WARNING, "create " + file, e);
+            }
+            return false;
+        }
+        DataFile dataFile = getOrCreate(urlDir);
+        dataFile.writing.add(key);
+        updateSlack(dataFile);
+        return true;
+    }
+
+    /**
+     * Ends the write of {@code key}, of which {@code written} bytes landed in the data file.
+     */
+    synchronized void onWriteFinished(File urlDir, SegmentInfo key, long written) {
+        DataFile dataFile = dataFiles.get(urlDir.getPath());
+        if (dataFile != null) {
+            dataFile.writing.remove(key);
+            if (written > 0 && written < key.getLength()) {
+                dataFile.orphans.add(new long[]{key.getStartByte(), key.getStartByte() + written - 1});
+            }
+            updateSlack(dataFile);
+        }
+    }
+
+    /**
+     * Takes in the ranges of a url found when the cache was opened. Returns whether its data file
+     * holds more than them and should be shrunk with {@link #shrink}.
+     */
+    synchronized boolean open(File urlDir, List<SliceIndex.CachedRange> ranges) {
+        DataFile dataFile = getOrCreate(urlDir);
+        dataFile.ranges = new ArrayList<>(ranges);
+        updateSlack(dataFile);
+        return needsShrink(urlDir, dataFile);
+    }
+
+    /**
+     * Rewrites the ranges file of a url after a range was added or removed. Returns whether the data
+     * file now holds bytes past its last range, or no range at all, and should be shrunk with
+     * {@link #shrink} once its readers are done. The caller holds the write lock of the url.
+     */
+    synchronized boolean update(File urlDir, List<SliceIndex.CachedRange> ranges) {
+        DataFile dataFile = getOrCreate(urlDir);
+        dataFile.ranges = new ArrayList<>(ranges);
+        updateSlack(dataFile);
+        if (!ranges.isEmpty()) {
+            saveRanges(urlDir, ranges);
+        }
+        return needsShrink(urlDir, dataFile);
+    }
+
+    /**
+     * Gives back the space past the last range of a url and the slices being written into it, or
+     * deletes the url directory if neither is left. The caller holds the write lock of the url.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    synchronized void shrink(File urlDir) {
+        DataFile dataFile = dataFiles.get(urlDir.getPath());
+        if (dataFile == null) {
+            return;
+        }
+        dataFile.isShrinkPending = false;
+        File file = getDataFile(urlDir);
+        if (dataFile.ranges.isEmpty() && dataFile.writing.isEmpty()) {
+            new File(urlDir, RANGES_NAME).delete();
+            file.delete();
+            urlDir.delete();
+            dataFiles.remove(urlDir.getPath());
+            totalSlack.addAndGet(-dataFile.slack);
+            return;
+        }
+        long end = getEnd(dataFile);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            if (randomAccessFile.length() > end) {
+                randomAccessFile.setLength(end);
+            }
+        } catch (IOException e) {
+            if (Constant.enableLog) {
+                logger.log(Level.WARNING, "truncate " + file, e);
+            }
+            return;
+        }
+        Iterator<long[]> iterator = dataFile.orphans.iterator();
+        while (iterator.hasNext()) {
+            long[] orphan = iterator.next();
+            if (orphan[0] >= end) {
+                iterator.remove();
+            } else {
+                orphan[1] = Math.min(orphan[1], end - 1);
+            }
+        }
+        updateSlack(dataFile);
+    }
+
+    synchronized void clear() {
+        dataFiles.clear();
+        totalSlack.set(0);
+    }
+
+    private boolean needsShrink(File urlDir, DataFile dataFile) {
+        if (dataFile.isShrinkPending || !dataFile.writing.isEmpty()) {
+            return false;
+        }
+        if (dataFile.ranges.isEmpty() || getDataFile(urlDir).length() > getEnd(dataFile)) {
+            dataFile.isShrinkPending = true;
+            return true;
+        }
+        return false;
+    }
+
+    private DataFile getOrCreate(File urlDir) {
+        DataFile dataFile = dataFiles.get(urlDir.getPath());
+        if (dataFile == null) {
+            dataFile = new DataFile();
+            dataFiles.put(urlDir.getPath(), dataFile);
+        }
+        return dataFile;
+    }
+
+    /**
+     * The length the data file needs, the end of its last range or slice being written.
+     */
+    private static long getEnd(DataFile dataFile) {
+        long end = 0;
+        for (SliceIndex.CachedRange range : dataFile.ranges) {
+            end = Math.max(end, range.end + 1);
+        }
+        for (SegmentInfo key : dataFile.writing) {
+            end = Math.max(end, key.getEndByte() + 1);
+        }
+        return end;
+    }
+
+    /**
+     * Counts the orphaned bytes up to the end of the file that neither a range nor a slice being written
+     * holds, and forgets the orphans a range was written over. The space past the end is not counted,
+     * it is given back once the readers are done.
+     */
+    private void updateSlack(DataFile dataFile) {
+        List<long[]> held = new ArrayList<>();
+        for (SliceIndex.CachedRange range : dataFile.ranges) {
+            held.add(new long[]{range.start, range.end});
+        }
+        for (SegmentInfo key : dataFile.writing) {
+            held.add(new long[]{key.getStartByte(), key.getEndByte()});
+        }
+        held = merge(held);
+        List<long[]> orphans = merge(dataFile.orphans);
+        dataFile.orphans.clear();
+        long end = getEnd(dataFile);
+        long slack = 0;
+        for (long[] orphan : orphans) {
+            long counted = Math.max(0, Math.min(orphan[1], end - 1) - orphan[0] + 1);
+            long free = orphan[1] - orphan[0] + 1;
+            for (long[] span : held) {
+                counted -= getOverlap(orphan[0], Math.min(orphan[1], end - 1), span);
+                free -= getOverlap(orphan[0], orphan[1], span);
+            }
+            if (free > 0) {
+                dataFile.orphans.add(orphan);
+            }
+            slack += counted;
+        }
+        totalSlack.addAndGet(slack - dataFile.slack);
+        dataFile.slack = slack;
+    }
+
+    /**
+     * The spans sorted by their start, overlapping and adjacent ones joined.
+     */
+    private static List<long[]> merge(List<long[]> spans) {
+        List<long[]> sorted = new ArrayList<>(spans);
+        Collections.sort(sorted, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] o1, long[] o2) {
+                return Long.compare(o1[0], o2[0]);
+            }
+        });
+        List<long[]> merged = new ArrayList<>();
+        for (long[] span : sorted) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && span[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], span[1]);
+            } else {
+                merged.add(new long[]{span[0], span[1]});
+            }
+        }
+        return merged;
+    }
+
+    private static long getOverlap(long start, long end, long[] span) {
+        return Math.max(0, Math.min(end, span[1]) - Math.max(start, span[0]) + 1);
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void saveRanges(File urlDir, List<SliceIndex.CachedRange> ranges) {
+        File tempFile = new File(urlDir, RANGES_TEMP_NAME);
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.US_ASCII);
+            for (SliceIndex.CachedRange range : ranges) {
+                writer.write(range.getFileName());
+                writer.write('\n');
+            }
+            writer.close();
+            writer = null;
+            File rangesFile = new File(urlDir, RANGES_NAME);
+            rangesFile.delete();
+            if (!tempFile.renameTo(rangesFile)) {
+                tempFile.delete();
+            }
+        } catch (IOException e) {
+            if (Constant.enableLog) {
+                logger.log(Level.WARNING, "save " + tempFile, e);
+            }
+            CloseUtil.close(writer);
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * The ranges listed for a url that its data file holds, for a cache without a journal.
+     */
+    static List<SliceIndex.CachedRange> loadRanges(File urlDir) {
+        List<SliceIndex.CachedRange> ranges = new ArrayList<>();
+        File rangesFile = new File(urlDir, RANGES_NAME);
+        if (!rangesFile.exists()) {
+            return ranges;
+        }
+        long length = getDataFile(urlDir).length();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(rangesFile),
+                StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                SliceIndex.CachedRange range = SliceIndex.CachedRange.parse(line);
+                if (range != null && range.end < length) {
+                    ranges.add(range);
+                }
+            }
+        } catch (IOException e) {
+            if (Constant.enableLog) {
+                logger.log(Level.WARNING, "load " + rangesFile, e);
+            }
+        }
+        return ranges;
+    }
+}
@@ -0,0 +1,184 @@
+package com.ahao.videocacheserver.cache;
+
+import com.ahao.videocacheserver.util.CloseUtil;
+import com.ahao.videocacheserver.util.Constant;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The body of a range that is only partly on disk. The cached parts are read from their slices, the
+ * gaps between them are opened from a {@link GapLoader} only when the stream gets to them, so the
+ * whole range goes out in order in one response. A cached part that can no longer be read, evicted
+ * meanwhile, is loaded like a gap from where it stopped.
+ */
+public class StitchedDataStream extends InputStream {
+    private static final Logger logger = Logger.getLogger("StitchedDataStream");
+
+    public interface GapLoader {
+        /**
+         * Opens the bytes from {@code start} on, {@code end} included at most. The stream may end
+         * before {@code end}, the rest is asked for again from where it stopped.
+         */
+        InputStream open(long start, long end) throws IOException;
+    }
+
+    public interface ProgressListener {
+        /**
+         * Called after every read with the position of the next byte.
+         */
+        void onProgress(long position);
+
+        /**
+         * Called once the stream is closed, with the position of the next byte it would have read.
+         */
+        void onClose(long position);
+    }
+
+    private static class Part {
+        final long start;
+        final long end;
+        final InputStream content;
+
+        Part(long start, long end, InputStream content) {
+            this.start = start;
+            this.end = end;
+            this.content = content;
+        }
+    }
+
+    private final long end;
+    private final GapLoader loader;
+    private ProgressListener listener;
+    private boolean isClosed;
+    // cached parts not reached yet, in order
+    private final List<Part> parts = new ArrayList<>();
+    private long position;
+
+    private InputStream current;
+    private long currentEnd;
+    private boolean isCurrentCached;
+    private long currentRead;
+
+    private final byte[] singleByte = new byte[1];
+
+    public StitchedDataStream(long start, long end, GapLoader loader) {
+        this.position = start;
+        this.end = end;
+        this.loader = loader;
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Adds the cached bytes from {@code start} to {@code end}, after the parts added before.
+     */
+    public void addCached(long start, long end, InputStream content) {
+        if (!parts.isEmpty() && parts.get(parts.size() - 1).end >= start) {
+            throw new IllegalArgumentException("cached parts must be added in order");
+        }
+        parts.add(new Part(start, end, content));
+    }
+
+    /**
+     * Opens the first part, so a gap at the start of the range fails before anything is sent.
+     */
+    public void open() throws IOException {
+        if (current == null && position <= end) {
+            openCurrent();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int read = read(singleByte, 0, 1);
+        return read == -1 ? -1 : singleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (position <= end) {
+            if (current == null) {
+                openCurrent();
+            }
+            int read;
+            try {
+                read = current.read(b, off, (int) Math.min(len, currentEnd - position + 1));
+            } catch (IOException e) {
+                if (!isCurrentCached) {
+                    throw e;
+                }
+                if (Constant.enableLog) {
+                    logger.log(Level.WARNING, "cached part failed at " + position, e);
+                }
+                read = -1;
+            }
+            if (read == -1) {
+                if (!isCurrentCached && currentRead == 0) {
+                    closeCurrent();
+                    throw new IOException("nothing loaded from " + position);
+                }
+                closeCurrent();
+                continue;
+            }
+            position += read;
+            currentRead += read;
+            if (position > currentEnd) {
+                closeCurrent();
+            }
+            if (listener != null) {
+                listener.onProgress(position);
+            }
+            return read;
+        }
+        return -1;
+    }
+
+    private void openCurrent() throws IOException {
+        while (!parts.isEmpty() && parts.get(0).start < position) {
+            CloseUtil.close(parts.remove(0).content);
+        }
+        currentRead = 0;
+        if (!parts.isEmpty() && parts.get(0).start == position) {
+            Part part = parts.remove(0);
+            current = part.content;
+            currentEnd = Math.min(part.end, end);
+            isCurrentCached = true;
+            return;
+        }
+        currentEnd = parts.isEmpty() ? end : parts.get(0).start - 1;
+        isCurrentCached = false;
+        current = loader.open(position, currentEnd);
+        if (current == null) {
+            throw new IOException("gap " + position + "-" + currentEnd + " not loaded");
+        }
+    }
+
+    private void closeCurrent() {
+        CloseUtil.close(current);
+        current = null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        closeCurrent();
+        if (listener != null && !isClosed) {
+            listener.onClose(position);
+        }
+        isClosed = true;
+        for (Part part : parts) {
+            CloseUtil.close(part.content);
+        }
+        parts.clear();
+    }
+}
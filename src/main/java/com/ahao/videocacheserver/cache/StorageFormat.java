@@ -0,0 +1,19 @@
+package com.ahao.videocacheserver.cache;
+
+/**
+ * How {@link DiskLruCache} lays the cached bytes of a url out on disk. A cache directory has to be
+ * opened with the format it was written in.
+ */
+public enum StorageFormat {
+    /**
+     * A file per cached range, named {@code start_end}, fragments of a slice merged in the background.
+     */
+    SLICE_FILES,
+    /**
+     * One sparse file per url with every byte written at its offset, plus the list of cached ranges.
+     * Reads of a url go through one file descriptor. The bytes a seek skipped are left as a hole, which
+     * the cache does not count, so this needs a file system that keeps files sparse; evicting a range
+     * drops the ranges after it.
+     */
+    SPARSE_FILE
+}
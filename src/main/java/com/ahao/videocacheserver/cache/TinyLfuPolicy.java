@@ -0,0 +1,130 @@
+package com.ahao.videocacheserver.cache;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Puts a frequency filter in front of another policy. How often each slice of each url was requested
+ * lately is estimated in a count-min sketch of 4 bit counters, halved every {@code sampleSize} requests
+ * so old popularity fades. A new slice is only cached if it was requested more often than the victim it
+ * would evict, so a burst of one-off views cannot flush the slices that are watched again and again.
+ * Which file is the victim is left to the wrapped policy.
+ */
+public class TinyLfuPolicy implements EvictionPolicy {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97cb3127, 0xc3a5c85c, 0x85ebca6b, 0x27d4eb2f};
+
+    private final EvictionPolicy policy;
+    private final int sampleSize;
+    private final int[] counters;
+    private final int mask;
+    private int additions;
+
+    private final Map<String, String> sliceKeys = new HashMap<>();
+
+    public TinyLfuPolicy() {
+        this(new LruPolicy(), 10000);
+    }
+
+    /**
+     * @param sampleSize requests after which all counts are halved, around ten times the number of
+     *                   slices the cache holds
+     */
+    public TinyLfuPolicy(EvictionPolicy policy, int sampleSize) {
+        this.policy = policy;
+        this.sampleSize = Math.max(16, sampleSize);
+        int width = Integer.highestOneBit(this.sampleSize - 1) << 1;
+        this.counters = new int[width * DEPTH];
+        this.mask = width - 1;
+    }
+
+    @Override
+    public void onRequest(String url, int slice) {
+        increment(getSliceKey(url, slice));
+        policy.onRequest(url, slice);
+    }
+
+    @Override
+    public void onAdd(String path, int slice) {
+        sliceKeys.put(path, getSliceKey(getUrl(path), slice));
+        policy.onAdd(path, slice);
+    }
+
+    @Override
+    public void onAccess(String path, int slice) {
+        policy.onAccess(path, slice);
+    }
+
+    @Override
+    public void onRemove(String path) {
+        sliceKeys.remove(path);
+        policy.onRemove(path);
+    }
+
+    @Override
+    public List<String> getVictims(int count) {
+        return policy.getVictims(count);
+    }
+
+    @Override
+    public boolean admit(String url, int slice, String victim) {
+        String victimKey = sliceKeys.get(victim);
+        if (victimKey == null) {
+            return policy.admit(url, slice, victim);
+        }
+        return frequency(getSliceKey(url, slice)) > frequency(victimKey) && policy.admit(url, slice, victim);
+    }
+
+    @Override
+    public void clear() {
+        sliceKeys.clear();
+        policy.clear();
+    }
+
+    private int frequency(String key) {
+        int hash = key.hashCode();
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, counters[indexOf(hash, i)]);
+        }
+        return frequency;
+    }
+
+    private void increment(String key) {
+        int hash = key.hashCode();
+        int frequency = frequency(key);
+        if (frequency == MAX_COUNT) {
+            return;
+        }
+        // conservative update, only the counters at the minimum grow
+        for (int i = 0; i < DEPTH; i++) {
+            int index = indexOf(hash, i);
+            if (counters[index] == frequency) {
+                counters[index]++;
+            }
+        }
+        if (++additions == sampleSize) {
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] >>>= 1;
+            }
+            additions /= 2;
+        }
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = hash * SEEDS[row];
+        h ^= h >>> 16;
+        return row * (mask + 1) + (h & mask);
+    }
+
+    private static String getUrl(String path) {
+        int separator = path.lastIndexOf('/');
+        return separator == -1 ? path : path.substring(0, separator);
+    }
+
+    private static String getSliceKey(String url, int slice) {
+        return url + "#" + slice;
+    }
+}
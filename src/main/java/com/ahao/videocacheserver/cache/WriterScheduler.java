@@ -0,0 +1,182 @@
+package com.ahao.videocacheserver.cache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs downloads on writer threads. Each download is one task, so the slices of a download are still
+ * written in order while different downloads run side by side. At most {@code threadCount} downloads
+ * run at once, and at most {@code maxPerHost} of the same host, the rest wait in order for one of them
+ * to end.
+ * <p>
+ * A download that waits for its readers to catch up, a paused player, is {@link #onPaused paused} and
+ * does not count against the limits until it {@link #onResumed resumes}, so it cannot keep the misses
+ * of other viewers waiting. Its thread stays blocked meanwhile, the pool grows past
+ * {@code threadCount} by the downloads paused.
+ */
+public class WriterScheduler {
+    private final ExecutorService executor;
+    private final int threadCount;
+    private final int maxPerHost;
+    private final CacheStats stats;
+
+    private static class Task {
+        final String host;
+        final Runnable runnable;
+
+        Task(String host, Runnable runnable) {
+            this.host = host;
+            this.runnable = runnable;
+        }
+    }
+
+    // downloads running and not paused
+    private final Map<String, Integer> runningByHost = new HashMap<>();
+    private int running = 0;
+    private int paused = 0;
+    private final List<Task> waiting = new LinkedList<>();
+    private int queueDepth = 0;
+
+    public WriterScheduler(int threadCount, int maxPerHost, CacheStats stats) {
+        this("DiskLruCache-writer-", threadCount, maxPerHost, Thread.NORM_PRIORITY, stats);
+    }
+
+    /**
+     * @param stats where the queue depth is reported, or null
+     */
+    public WriterScheduler(final String threadName, int threadCount, int maxPerHost, final int priority, CacheStats stats) {
+        this.threadCount = Math.max(1, threadCount);
+        this.maxPerHost = Math.max(1, maxPerHost);
+        this.stats = stats;
+        final AtomicInteger threadIndex = new AtomicInteger();
+        // the limits are kept here, threads beyond them only serve paused downloads
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(priority);
+                return thread;
+            }
+        });
+    }
+
+    public synchronized void submit(String host, Runnable task) {
+        queueDepth++;
+        onQueueDepth();
+        waiting.add(new Task(host, task));
+        startWaiting();
+    }
+
+    /**
+     * Called by a running download of {@code host} that waits for its readers, it no longer counts
+     * against the limits.
+     */
+    public synchronized void onPaused(String host) {
+        paused++;
+        removeRunning(host);
+        startWaiting();
+    }
+
+    /**
+     * Called by a paused download of {@code host} that goes on writing. It counts against the limits
+     * again at once, even if that takes them over until other downloads end.
+     */
+    public synchronized void onResumed(String host) {
+        paused--;
+        addRunning(host);
+    }
+
+    /**
+     * Starts the downloads waiting in order that the limits let run.
+     */
+    private void startWaiting() {
+        Iterator<Task> iterator = waiting.iterator();
+        while (running < threadCount && iterator.hasNext()) {
+            Task task = iterator.next();
+            if (getRunningCount(task.host) < maxPerHost) {
+                iterator.remove();
+                addRunning(task.host);
+                executor.execute(wrap(task.host, task.runnable));
+            }
+        }
+    }
+
+    private void addRunning(String host) {
+        running++;
+        runningByHost.put(host, getRunningCount(host) + 1);
+    }
+
+    private void removeRunning(String host) {
+        running--;
+        int count = getRunningCount(host) - 1;
+        if (count <= 0) {
+            runningByHost.remove(host);
+        } else {
+            runningByHost.put(host, count);
+        }
+    }
+
+    private Runnable wrap(final String host, final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                onStart();
+                try {
+                    task.run();
+                } finally {
+                    onFinish(host);
+                }
+            }
+        };
+    }
+
+    private synchronized void onStart() {
+        queueDepth--;
+        onQueueDepth();
+    }
+
+    private void onQueueDepth() {
+        if (stats != null) {
+            stats.onWriterQueueDepth(queueDepth);
+        }
+    }
+
+    private synchronized void onFinish(String host) {
+        removeRunning(host);
+        startWaiting();
+    }
+
+    /**
+     * Downloads submitted but not started yet, whether waiting for a thread or for their host's limit.
+     */
+    public synchronized int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Whether no download is running, paused or waiting.
+     */
+    public synchronized boolean isIdle() {
+        return queueDepth == 0 && running == 0 && paused == 0;
+    }
+
+    /**
+     * Downloads of {@code host} running and not paused.
+     */
+    public synchronized int getRunningCount(String host) {
+        Integer count = runningByHost.get(host);
+        return count == null ? 0 : count;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -5,10 +5,13 @@ import com.ahao.videocacheserver.HttpRequest;
 import com.ahao.videocacheserver.HttpResponse;
 import com.ahao.videocacheserver.exception.RequestException;
 import com.ahao.videocacheserver.util.CloseUtil;
+import com.ahao.videocacheserver.util.ConnectionPool;
 import com.ahao.videocacheserver.util.Constant;
 import com.ahao.videocacheserver.util.RequestUtil;
 
-import java.io.File;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
@@ -31,7 +34,7 @@ public class CacheInterceptor implements Interceptor {
         HttpRequest request = chain.getRequest();
         String host = request.getHost();
 
-        int[] range = {0, -1};
+        long[] range = {0, -1};
         getRequestRange(range, request);
         HttpResponse cacheHeaders = cache.getCacheHeaders(request.getHost(), request.getUrlWithNoParam());
         if (cacheHeaders == null || cacheHeaders.getTotalLength() == -1) {
@@ -41,74 +44,153 @@ public class CacheInterceptor implements Interceptor {
                 throw new RequestException("Refresh Url Header Failed " + response);
             }
             cache.cacheHeaders(request.getHost(), request.getUrlWithNoParam(), response);
+            cacheHeaders = response;
         }
 
-        HttpResponse ch = cache.getCacheHeaders(request.getHost(), request.getUrlWithNoParam());
-        int urlTotalLength = ch.getTotalLength();
+        long urlTotalLength = cacheHeaders.getTotalLength();
 
         if (range[1] == -1) {
             range[1] = urlTotalLength - 1;
         }
 
         SegmentInfo segmentInfo = new SegmentInfo(host, request.getUrlWithNoParam(), range[0], range[1]);
+        PlaylistPrefetcher playlistPrefetcher = cache.getPlaylistPrefetcher();
+        if (playlistPrefetcher != null) {
+            playlistPrefetcher.onSegmentRequest(host, segmentInfo.getUrl());
+        }
+        SlicePrefetcher prefetcher = cache.getPrefetcher();
+        SlicePrefetcher.Playback playback = prefetcher == null ? null
+                : prefetcher.onRequest(request, segmentInfo, urlTotalLength);
         List<DiskLruCache.CacheResult> results = cache.get(segmentInfo);
+        if (!isOnDisk(results)) {
+            return getStitchedResponse(chain, request, segmentInfo, results, urlTotalLength, playback);
+        }
 
-        if (results == null || results.size() == 0) {
-            // cache miss
-            HttpResponse httpResponse = getHttpResponse(chain, request, segmentInfo, urlTotalLength);
-            if (Constant.enableLog) {
-                logger.log(Level.INFO, "miss cache \n");
-                logger.log(Level.INFO, request.getHeadText());
-                logger.log(Level.INFO, "get data from net\n");
-                logger.log(Level.INFO, httpResponse.getHeadText());
+        // cache hit
+        List<CacheSlice> cacheFiles = new ArrayList<>();
+        for (DiskLruCache.CacheResult cacheResult : results) {
+            cacheFiles.add(cacheResult.getSlice());
+        }
+        long skip = results.get(0).getStartBytes();
+
+        HttpResponse response = getCacheResponse(segmentInfo, segmentInfo.getEndByte(), urlTotalLength,
+                new FilesDataStream(new CommonListFile(cacheFiles), skip, segmentInfo.getLength()));
+        if (Constant.enableLog) {
+            logger.log(Level.INFO, "cache hit : \n");
+            logger.log(Level.INFO, response.getHeadText());
+        }
+        return response;
+    }
+
+    private static boolean isOnDisk(List<DiskLruCache.CacheResult> results) {
+        if (results == null || results.isEmpty()) {
+            return false;
+        }
+        for (DiskLruCache.CacheResult cacheResult : results) {
+            if (cacheResult.getCachedFile() == null) {
+                return false;
             }
-            return httpResponse;
         }
+        return true;
+    }
 
-        if (!results.get(0).isCached()) {
-            int missEndBytes = range[0];
+    /**
+     * Serves the whole range of a partly cached url in one response: the slices on disk are read from
+     * there and each gap between them is loaded from the origin, cached on the way, only once the body
+     * gets to it. Slices still downloading are gaps too, they are read by attaching to their download.
+     */
+    private HttpResponse getStitchedResponse(final Chain chain, final HttpRequest request, final SegmentInfo segmentInfo,
+                                             List<DiskLruCache.CacheResult> results, final long urlTotalLength,
+                                             StitchedDataStream.ProgressListener listener) throws RequestException {
+        StitchedDataStream content = new StitchedDataStream(segmentInfo.getStartByte(), segmentInfo.getEndByte(),
+                new StitchedDataStream.GapLoader() {
+                    @Override
+                    public InputStream open(long start, long end) throws IOException {
+                        SegmentInfo gap = new SegmentInfo(segmentInfo.getHost(), segmentInfo.getUrl(), start, end);
+                        try {
+                            return openGap(chain, request, gap, urlTotalLength);
+                        } catch (RequestException e) {
+                            throw new IOException(e.getMessage());
+                        }
+                    }
+                });
+        if (results != null) {
+            long start = segmentInfo.getStartByte();
             for (DiskLruCache.CacheResult cacheResult : results) {
-                if (!cacheResult.isCached()) {
-                    missEndBytes += cacheResult.getEndBytes() - cacheResult.getStartBytes() + 1;
-                } else {
-                    break;
+                long length = cacheResult.getEndBytes() - cacheResult.getStartBytes() + 1;
+                if (cacheResult.getCachedFile() != null) {
+                    content.addCached(start, start + length - 1, getCachedContent(cacheResult));
                 }
+                start += length;
             }
+        }
+        content.setProgressListener(listener);
+        try {
+            content.open();
+        } catch (IOException e) {
+            CloseUtil.close(content);
+            throw new RequestException(e.getMessage());
+        }
+        HttpResponse response = getCacheResponse(segmentInfo, segmentInfo.getEndByte(), urlTotalLength, content);
+        if (Constant.enableLog) {
+            logger.log(Level.INFO, "stitched response : \n");
+            logger.log(Level.INFO, response.getHeadText());
+        }
+        return response;
+    }
 
-            segmentInfo.setStartByte(range[0]);
-            segmentInfo.setEndByte(missEndBytes - 1);
+    private static FilesDataStream getCachedContent(DiskLruCache.CacheResult cacheResult) {
+        List<CacheSlice> slices = new ArrayList<>();
+        slices.add(cacheResult.getSlice());
+        return new FilesDataStream(new CommonListFile(slices), cacheResult.getStartBytes(),
+                cacheResult.getEndBytes() - cacheResult.getStartBytes() + 1);
+    }
 
-            HttpResponse httpResponse = getHttpResponse(chain, request, segmentInfo, urlTotalLength);
+    /**
+     * Opens a gap of a stitched response from the download already fetching it, from disk if it was
+     * cached meanwhile, from a new download if its first slice can be reserved, or else straight from
+     * the origin without caching it.
+     */
+    private InputStream openGap(Chain chain, HttpRequest request, SegmentInfo gap, long urlTotalLength) throws RequestException {
+        InputStream content = getLiveContent(gap);
+        if (content != null) {
+            return content;
+        }
+        // the request was looked up as a whole already, the policy counts it once
+        List<DiskLruCache.CacheResult> results = cache.get(gap, false);
+        if (results != null && results.get(0).getCachedFile() != null) {
+            return getCachedContent(results.get(0));
+        }
+        HttpRequest gapRequest = copyRequest(request);
+        HttpResponse response = getHttpResponse(chain, gapRequest, gap, urlTotalLength);
+        if (response != null) {
             if (Constant.enableLog) {
-                logger.log(Level.INFO, "miss cache \n");
-                logger.log(Level.INFO, request.getHeadText());
-                logger.log(Level.INFO, "get data from net\n");
-                logger.log(Level.INFO, httpResponse.getHeadText());
+                logger.log(Level.INFO, "gap from net \n");
+                logger.log(Level.INFO, response.getHeadText());
             }
-            return httpResponse;
+            return response.getContent();
         }
-
-        // cache hit
-        int hitCacheStart = range[0];
-        int hitCacheEnd = range[0];
-        List<File> cacheFiles = new ArrayList<>();
-        int skip = 0;
-        for (int i = 0; i < results.size(); i++) {
-            DiskLruCache.CacheResult cacheResult = results.get(i);
-            if (i == 0) {
-                skip = cacheResult.getStartBytes();
-            }
-            if (cacheResult.isCached()) {
-                hitCacheEnd += cacheResult.getEndBytes() - cacheResult.getStartBytes() + 1;
-                cacheFiles.add(cacheResult.getCachedFile());
-            } else {
-                break;
-            }
+        // the first slice was reserved by a concurrent request meanwhile, read from its download
+        content = getLiveContent(gap);
+        if (content != null) {
+            return content;
         }
+        // no room, or the eviction policy would not cache it
+        return getUncachedResponse(chain, gapRequest, gap, urlTotalLength).getContent();
+    }
 
-        hitCacheEnd--;
+    private InputStream getLiveContent(SegmentInfo segmentInfo) {
+        LiveDownload.Reader reader = cache.attach(segmentInfo);
+        if (reader == null) {
+            return null;
+        }
+        long end = Math.min(segmentInfo.getEndByte(), reader.getEndByte());
+        return new FilesDataStream(reader, reader.getStartOffset(), end - segmentInfo.getStartByte() + 1);
+    }
 
-        boolean isPartialContent = hitCacheStart != 0 || hitCacheEnd != urlTotalLength - 1;
+    private HttpResponse getCacheResponse(SegmentInfo segmentInfo, long end, long urlTotalLength, InputStream content) {
+        long start = segmentInfo.getStartByte();
+        boolean isPartialContent = start != 0 || end != urlTotalLength - 1;
 
         HttpResponse response = cache.getCacheHeaders(segmentInfo.getHost(), segmentInfo.getUrl());
         if (response == null) {
@@ -117,33 +199,28 @@ public class CacheInterceptor implements Interceptor {
         response.setProtocol(Constant.HTTP_VERSION_1_1);
         response.setStatusCode(isPartialContent ? 206 : 200);
         response.setStatusString(isPartialContent ? Constant.Partial_Content : Constant.OK);
-        response.getHeaders().put(Constant.CONNECTION, "close");
-        response.getHeaders().put(Constant.CONTENT_LENGTH, hitCacheEnd - hitCacheStart + 1 + "");
+        response.getHeaders().put(Constant.CONTENT_LENGTH, end - start + 1 + "");
         response.getHeaders().put(Constant.ACCEPT_RANGES, "bytes");
         response.getHeaders().put(Constant.CONTENT_RANGE,
                 String.format("bytes %d-%d/%d",
-                        range[0],
-                        hitCacheEnd,
+                        start,
+                        end,
                         urlTotalLength));
-        response.setContent(new FilesDataStream(new CommonListFile(cacheFiles), skip, hitCacheEnd - hitCacheStart + 1));
-        if (Constant.enableLog) {
-            logger.log(Level.INFO, "cache hit : \n");
-            logger.log(Level.INFO, response.getHeadText());
-        }
+        response.setContent(content);
         return response;
     }
 
-    private void getRequestRange(int[] range, HttpRequest request) {
+    private void getRequestRange(long[] range, HttpRequest request) {
         String rangeString = request.getHeaders().get(Constant.RANGE);
         try {
             if (rangeString != null) {
                 Matcher matcher = RANGE_HEADER_PATTERN.matcher(rangeString);
                 if (matcher.find()) {
                     if (matcher.groupCount() >= 1) {
-                        range[0] = Integer.parseInt(matcher.group(1));
+                        range[0] = Long.parseLong(matcher.group(1));
                     }
                     if (matcher.groupCount() >= 2) {
-                        range[1] = Integer.parseInt(matcher.group(2));
+                        range[1] = Long.parseLong(matcher.group(2));
                     }
                 }
             }
@@ -152,9 +229,13 @@ public class CacheInterceptor implements Interceptor {
 
     }
 
-    private HttpResponse getHttpResponse(Chain chain, HttpRequest request, SegmentInfo segmentInfo, int urlTotalLength) throws RequestException {
-        int start = segmentInfo.getStartByte();
-        int end = segmentInfo.getEndByte();
+    private HttpResponse getHttpResponse(Chain chain, HttpRequest request, SegmentInfo segmentInfo, long urlTotalLength) throws RequestException {
+        LiveDownload download = cache.reserve(segmentInfo);
+        if (download == null) {
+            return null;
+        }
+        long start = download.getStartByte();
+        long end = download.getEndByte();
 
         if (start == 0 && end == urlTotalLength - 1) {
             request.getHeaders().remove(Constant.RANGE);
@@ -162,29 +243,73 @@ public class CacheInterceptor implements Interceptor {
             request.getHeaders().put(Constant.RANGE, String.format("bytes=%d-%d", start, end));
         }
 
-        HttpResponse proceed = chain.proceed(request);
+        HttpResponse proceed;
+        try {
+            proceed = chain.proceed(request);
+        } catch (RuntimeException e) {
+            cache.abort(download);
+            throw e;
+        }
 
         if (!proceed.isOK()) {
+            cache.abort(download);
+            CloseUtil.close(proceed.getContent());
             throw new RequestException("request is not ok :" + proceed.getHeadText());
         }
 
         cache.cacheHeaders(request.getHost(), request.getUrlWithNoParam(), proceed);
 
-        BlockListFile blockList = cache.put(segmentInfo, proceed.getContent());
-        if (blockList == null) {
-            return HttpResponse.get302Response(request.getHost(), request.getUrl(), request.getHostPort());
-        }
+        LiveDownload.Reader reader = download.newReader(start);
+        final InputStream body = proceed.getContent();
+        cache.put(download, body, new Closeable() {
+            @Override
+            public void close() {
+                ConnectionPool.abort(body);
+            }
+        });
+        proceed.setContent(new FilesDataStream(reader, reader.getStartOffset(), download.getTotalLength()));
+        return proceed;
+    }
 
-        proceed.setContent(new FilesDataStream(blockList, blockList.getTotalLength()));
+    private HttpResponse getUncachedResponse(Chain chain, HttpRequest request, SegmentInfo segmentInfo, long urlTotalLength) throws RequestException {
+        if (segmentInfo.getStartByte() == 0 && segmentInfo.getEndByte() == urlTotalLength - 1) {
+            request.getHeaders().remove(Constant.RANGE);
+        } else {
+            request.getHeaders().put(Constant.RANGE, String.format("bytes=%d-%d", segmentInfo.getStartByte(), segmentInfo.getEndByte()));
+        }
+        HttpResponse proceed = chain.proceed(request);
+        if (!proceed.isOK()) {
+            CloseUtil.close(proceed.getContent());
+            throw new RequestException("request is not ok :" + proceed.getHeadText());
+        }
+        if (Constant.enableLog) {
+            logger.log(Level.INFO, "not cached, get data from net\n");
+            logger.log(Level.INFO, proceed.getHeadText());
+        }
         return proceed;
     }
 
+    private static HttpRequest copyRequest(HttpRequest request) {
+        try {
+            return (HttpRequest) request.clone();
+        } catch (CloneNotSupportedException e) {
+            return request;
+        }
+    }
+
+    /**
+     * Asks only for the first byte, so the body is drained and the origin connection goes back to the
+     * pool instead of being closed in the middle of a large response.
+     */
     private HttpResponse refreshUrlHeaders(HttpRequest request) {
-        HttpResponse response = RequestUtil.getHttpResponseFromNet(request);
+        HttpRequest headRequest = copyRequest(request);
+        headRequest.getHeaders().put(Constant.RANGE, "bytes=0-0");
+        HttpResponse response = RequestUtil.getHttpResponseFromNet(headRequest);
         if (response == null) {
             return null;
         }
-        CloseUtil.close(response.getSocket());
+        CloseUtil.close(response.getContent());
+        response.setContent(null);
         return response;
     }
 
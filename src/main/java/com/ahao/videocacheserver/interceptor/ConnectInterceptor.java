@@ -1,5 +1,6 @@
 package com.ahao.videocacheserver.interceptor;
 
+import com.ahao.videocacheserver.util.CloseUtil;
 import com.ahao.videocacheserver.util.RequestUtil;
 import com.ahao.videocacheserver.HttpRequest;
 import com.ahao.videocacheserver.HttpResponse;
@@ -12,7 +13,11 @@ public class ConnectInterceptor implements Interceptor {
         HttpRequest request = chain.getRequest();
         HttpResponse response = RequestUtil.getHttpResponseFromNet(request);
 
+        if (response == null) {
+            throw new RequestException("request failed :" + request.getHeadText());
+        }
         if (!response.isOK()) {
+            CloseUtil.close(response.getContent());
             throw new RequestException("request not ok :" + response.getHeadText());
         }
         return response;
@@ -44,7 +44,7 @@ public class HostFilterInterceptor implements Interceptor {
             request.getHeaders().put(Constant.HOST, realHostName);
             request.getHeaders().put(Constant.HOST_PORT, String.valueOf(realHostPort));
             request.getHeaders().remove(Constant.IF_RANGE);
-            request.getHeaders().put(Constant.CONNECTION, "close");
+            request.getHeaders().put(Constant.CONNECTION, "keep-alive");
 
             if (request.getHeaders().get(Constant.REFERER) != null) {
                 String referer = String.format("http://%s:%s%s", proxyHost, proxyServerPort, url);
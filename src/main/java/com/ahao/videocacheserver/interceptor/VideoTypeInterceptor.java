@@ -2,18 +2,33 @@ package com.ahao.videocacheserver.interceptor;
 
 import com.ahao.videocacheserver.HttpRequest;
 import com.ahao.videocacheserver.ProxyCharset;
+import com.ahao.videocacheserver.cache.PlaylistPrefetcher;
 import com.ahao.videocacheserver.exception.RequestException;
 import com.ahao.videocacheserver.util.CloseUtil;
 import com.ahao.videocacheserver.util.Constant;
+import com.ahao.videocacheserver.util.RequestUtil;
 import com.ahao.videocacheserver.HttpResponse;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 public class VideoTypeInterceptor implements Interceptor {
 
     private final static List<String> M3U8_CONTENT_TYPES = Arrays.asList("vnd.apple.mpegurl", "application/x-mpegurl");
+    private final PlaylistPrefetcher playlistPrefetcher;
+
+    public VideoTypeInterceptor() {
+        this(null);
+    }
+
+    /**
+     * @param playlistPrefetcher told the segments of every media playlist, or null
+     */
+    public VideoTypeInterceptor(PlaylistPrefetcher playlistPrefetcher) {
+        this.playlistPrefetcher = playlistPrefetcher;
+    }
 
     @Override
     public HttpResponse intercept(Chain chain) throws RequestException {
@@ -39,6 +54,7 @@ public class VideoTypeInterceptor implements Interceptor {
                 BufferedReader reader = new BufferedReader(new InputStreamReader(content));
                 String line;
                 boolean isTsUrl = false;
+                List<String> segmentUris = new ArrayList<>();
 
                 byte[] enter = "\r\n".getBytes(ProxyCharset.CUR_CHARSET);
 
@@ -48,6 +64,9 @@ public class VideoTypeInterceptor implements Interceptor {
                     baos.write(lineBytes);
 
                     if (isTsUrl) {
+                        if (!line.trim().isEmpty() && !line.startsWith("#")) {
+                            segmentUris.add(line);
+                        }
                         String param = String.format("%s%s=%s:%s", line.contains("?") ? "&" : "?", Constant.REAL_HOST_NAME, realHost, hostPort);
                         baos.write(param.getBytes(ProxyCharset.CUR_CHARSET));
                         isTsUrl = false;
@@ -61,10 +80,14 @@ public class VideoTypeInterceptor implements Interceptor {
 
                 baos.flush();
                 response.setContent(new ByteArrayInputStream(baos.toByteArray()));
+                response.getHeaders().remove(Constant.TRANSFER_ENCODING);
                 response.setContentLength(baos.size());
                 response.getHeaders().put(Constant.CONTENT_RANGE, String.format("%d-%d/%d", 0, baos.size() - 1, baos.size()));
 
                 CloseUtil.close(reader);
+                if (playlistPrefetcher != null && !segmentUris.isEmpty()) {
+                    playlistPrefetcher.onPlaylist(request, segmentUris);
+                }
             }
         } catch (Exception e) {
             throw new RequestException(e.getMessage());
@@ -0,0 +1,158 @@
+package com.ahao.videocacheserver.nio;
+
+import com.ahao.videocacheserver.util.CloseUtil;
+import com.ahao.videocacheserver.util.Constant;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class EventLoop implements Runnable {
+    private static final Logger logger = Logger.getLogger("EventLoop");
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<ScheduledTask> scheduledTasks = new PriorityQueue<>();
+    private long scheduledSequence = 0;
+    private volatile boolean isRunning = true;
+    private Thread thread;
+
+    public EventLoop() throws IOException {
+        selector = Selector.open();
+    }
+
+    public void start(String name) {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void execute(Runnable task) {
+        if (inEventLoop()) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs {@code task} on the loop thread after {@code delayMillis}.
+     */
+    public void schedule(final Runnable task, long delayMillis) {
+        final long deadline = System.currentTimeMillis() + delayMillis;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                scheduledTasks.add(new ScheduledTask(deadline, scheduledSequence++, task));
+            }
+        });
+    }
+
+    public void shutdown() {
+        isRunning = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (isRunning) {
+            try {
+                selector.select(getSelectTimeout());
+                runTasks();
+                runScheduledTasks();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    Object attachment = key.attachment();
+                    if (attachment instanceof SelectHandler) {
+                        ((SelectHandler) attachment).onSelected(key);
+                    }
+                }
+            } catch (Exception e) {
+                if (Constant.enableLog) {
+                    logger.log(Level.SEVERE, "event loop error ", e);
+                }
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            CloseUtil.close(key.channel());
+        }
+        CloseUtil.close(selector);
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                if (Constant.enableLog) {
+                    logger.log(Level.SEVERE, "event loop task error ", e);
+                }
+            }
+        }
+    }
+
+    private long getSelectTimeout() {
+        ScheduledTask next = scheduledTasks.peek();
+        if (next == null) {
+            return 1000;
+        }
+        return Math.max(1, Math.min(1000, next.deadline - System.currentTimeMillis()));
+    }
+
+    private void runScheduledTasks() {
+        long now = System.currentTimeMillis();
+        ScheduledTask next;
+        while ((next = scheduledTasks.peek()) != null && next.deadline <= now) {
+            scheduledTasks.poll();
+            try {
+                next.task.run();
+            } catch (Exception e) {
+                if (Constant.enableLog) {
+                    logger.log(Level.SEVERE, "event loop scheduled task error ", e);
+                }
+            }
+        }
+    }
+
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+        private final long deadline;
+        private final long sequence;
+        private final Runnable task;
+
+        ScheduledTask(long deadline, long sequence, Runnable task) {
+            this.deadline = deadline;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask o) {
+            if (deadline != o.deadline) {
+                return deadline < o.deadline ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+        }
+    }
+
+    public interface SelectHandler {
+        void onSelected(SelectionKey key);
+    }
+}
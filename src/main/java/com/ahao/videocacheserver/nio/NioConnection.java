@@ -0,0 +1,337 @@
+package com.ahao.videocacheserver.nio;
+
+import com.ahao.videocacheserver.HttpRequest;
+import com.ahao.videocacheserver.HttpResponse;
+import com.ahao.videocacheserver.ProxyCharset;
+import com.ahao.videocacheserver.cache.FilesDataStream;
+import com.ahao.videocacheserver.util.CloseUtil;
+import com.ahao.videocacheserver.util.Constant;
+import com.ahao.videocacheserver.util.RequestUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One client connection served by an {@link EventLoop}. Socket reads and writes only happen on the
+ * loop thread, the interceptor chain and body reads that may block run on the worker pool, so a slow
+ * player never holds a thread while it is not consuming. A body read does block its worker until the
+ * origin or the download behind it has bytes, see {@link NioProxyServer} for sizing the pool; a body
+ * sent straight from a file never leaves the loop. Keep-alive connections serve requests one at a
+ * time; pipelined requests stay in the read buffer until the response before them is written.
+ */
+public class NioConnection implements EventLoop.SelectHandler {
+    private static final Logger logger = Logger.getLogger("NioConnection");
+
+    private static final int MAX_HEAD_LENGTH = 16 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 32 * 1024;
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final ExecutorService workers;
+    private final NioProxyServer.RequestHandler handler;
+
+    private SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+    private ByteBuffer writeBuffer;
+    private HttpResponse response;
+    private InputStream content;
+    private FilesDataStream transferContent;
+    private boolean contentFinished;
+    private boolean isKeepAlive;
+    private boolean isHead;
+    private long contentLength;
+    private long bodySent;
+    private int requestCount = 0;
+    private volatile boolean isClosed;
+
+    NioConnection(SocketChannel channel, EventLoop loop, ExecutorService workers, NioProxyServer.RequestHandler handler) {
+        this.channel = channel;
+        this.loop = loop;
+        this.workers = workers;
+        this.handler = handler;
+    }
+
+    void register() throws IOException {
+        channel.configureBlocking(false);
+        key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+        scheduleIdleCheck();
+    }
+
+    @Override
+    public void onSelected(SelectionKey key) {
+        try {
+            if (!key.isValid()) {
+                close();
+                return;
+            }
+            if (key.isReadable()) {
+                onReadable();
+            } else if (key.isWritable()) {
+                onWritable();
+            }
+        } catch (Exception e) {
+            if (Constant.enableLog) {
+                logger.log(Level.SEVERE, "connection error ", e);
+            }
+            close();
+        }
+    }
+
+    private void onReadable() throws IOException {
+        if (!readBuffer.hasRemaining()) {
+            if (readBuffer.capacity() >= MAX_HEAD_LENGTH) {
+                close();
+                return;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_HEAD_LENGTH));
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+        int read = channel.read(readBuffer);
+        if (read == -1) {
+            close();
+            return;
+        }
+        dispatchRequest();
+    }
+
+    /**
+     * Hands the next complete request head in the read buffer to the workers, returns false if no
+     * complete head has arrived yet.
+     */
+    private boolean dispatchRequest() {
+        int headEnd = findHeadEnd(readBuffer);
+        if (headEnd == -1) {
+            return false;
+        }
+        final byte[] head = new byte[headEnd];
+        readBuffer.flip();
+        readBuffer.get(head);
+        readBuffer.compact();
+
+        requestCount++;
+        key.interestOps(0);
+        workers.submit(new Runnable() {
+            @Override
+            public void run() {
+                process(head);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Closes the connection if it is still waiting for the same request once the idle timeout passes.
+     */
+    private void scheduleIdleCheck() {
+        final int waitingRequest = requestCount;
+        loop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!isClosed && requestCount == waitingRequest) {
+                    close();
+                }
+            }
+        }, Constant.CLIENT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    private static int findHeadEnd(ByteBuffer buffer) {
+        int limit = buffer.position();
+        for (int i = 3; i < limit; i++) {
+            if (buffer.get(i) == '\n' && buffer.get(i - 1) == '\r' && buffer.get(i - 2) == '\n' && buffer.get(i - 3) == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private void process(byte[] head) {
+        try {
+            HttpRequest request = HttpRequest.parse(head, 0, head.length);
+            if (request.getMethod() == null) {
+                closeLater();
+                return;
+            }
+            boolean wantsKeepAlive = RequestUtil.isKeepAlive(request);
+            isHead = Constant.METHOD_HEAD.equalsIgnoreCase(request.getMethod());
+            response = handler.handle(request);
+            isKeepAlive = RequestUtil.prepareKeepAlive(response, wantsKeepAlive);
+            contentLength = RequestUtil.getContentLength(response);
+            content = response.getContent();
+            if (isHead) {
+                CloseUtil.close(content);
+                content = null;
+            }
+            byte[] headBytes = response.getHeadText().getBytes(ProxyCharset.CUR_CHARSET);
+            writeBuffer = ByteBuffer.allocate(Math.max(WRITE_BUFFER_SIZE, headBytes.length));
+            writeBuffer.put(headBytes);
+            if (content == null) {
+                contentFinished = true;
+            } else if (content instanceof FilesDataStream && ((FilesDataStream) content).isTransferable()) {
+                transferContent = (FilesDataStream) content;
+            } else {
+                fillBody();
+            }
+            writeBuffer.flip();
+            enableWrite();
+        } catch (Exception e) {
+            if (Constant.enableLog) {
+                logger.log(Level.SEVERE, "process request error ", e);
+            }
+            closeLater();
+        }
+    }
+
+    private void fillBody() throws IOException {
+        while (writeBuffer.hasRemaining()) {
+            int length = content.read(writeBuffer.array(), writeBuffer.arrayOffset() + writeBuffer.position(), writeBuffer.remaining());
+            if (length == -1) {
+                contentFinished = true;
+                break;
+            }
+            writeBuffer.position(writeBuffer.position() + length);
+            bodySent += length;
+            if (content.available() <= 0) {
+                break;
+            }
+        }
+    }
+
+    private void onWritable() throws IOException {
+        channel.write(writeBuffer);
+        if (writeBuffer.hasRemaining()) {
+            return;
+        }
+        if (transferContent != null) {
+            bodySent += transferContent.transferTo(channel);
+            if (transferContent.isFinished()) {
+                finishResponse();
+            }
+            return;
+        }
+        if (contentFinished) {
+            finishResponse();
+            return;
+        }
+        key.interestOps(0);
+        workers.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeBuffer.clear();
+                    fillBody();
+                    writeBuffer.flip();
+                    if (!writeBuffer.hasRemaining() && contentFinished) {
+                        loop.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (!isClosed) {
+                                    finishResponse();
+                                }
+                            }
+                        });
+                        return;
+                    }
+                    enableWrite();
+                } catch (Exception e) {
+                    if (Constant.enableLog) {
+                        logger.log(Level.SEVERE, "read response body error ", e);
+                    }
+                    closeLater();
+                }
+            }
+        });
+    }
+
+    /**
+     * Called on the loop thread once a response is written. The connection is reused only if the
+     * client can tell where the body ended, otherwise it is closed.
+     */
+    private void finishResponse() {
+        if (!isKeepAlive || (!isHead && bodySent != contentLength)) {
+            close();
+            return;
+        }
+        releaseResponse();
+        response = null;
+        content = null;
+        transferContent = null;
+        writeBuffer = null;
+        contentFinished = false;
+        bodySent = 0;
+        if (!dispatchRequest()) {
+            key.interestOps(SelectionKey.OP_READ);
+            scheduleIdleCheck();
+        }
+    }
+
+    private void enableWrite() {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (isClosed) {
+                    releaseResponse();
+                    return;
+                }
+                if (!key.isValid()) {
+                    close();
+                    return;
+                }
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        });
+    }
+
+    private void closeLater() {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    void close() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        CloseUtil.close(channel);
+        releaseResponse();
+    }
+
+    private void releaseResponse() {
+        final InputStream closingContent = content;
+        final HttpResponse closingResponse = response;
+        if (closingContent == null && closingResponse == null) {
+            return;
+        }
+        workers.submit(new Runnable() {
+            @Override
+            public void run() {
+                CloseUtil.close(closingContent);
+                if (closingResponse != null) {
+                    CloseUtil.close(closingResponse.getSocket());
+                }
+            }
+        });
+    }
+
+    static void closeQuietly(SocketChannel channel, Throwable cause) {
+        if (Constant.enableLog && !(cause instanceof ClosedChannelException)) {
+            logger.log(Level.WARNING, "register connection error ", cause);
+        }
+        CloseUtil.close(channel);
+    }
+}
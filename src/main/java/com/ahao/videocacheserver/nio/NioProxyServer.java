@@ -0,0 +1,129 @@
+package com.ahao.videocacheserver.nio;
+
+import com.ahao.videocacheserver.HttpRequest;
+import com.ahao.videocacheserver.HttpResponse;
+import com.ahao.videocacheserver.util.CloseUtil;
+import com.ahao.videocacheserver.util.Constant;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves client connections on a few selector loops. The interceptor chain and the body reads run on
+ * {@code workerCount} worker threads: the origin, download and file streams behind a response block,
+ * so a worker waits with a body until its next bytes are there. Reads that wait for the player never
+ * hold a worker, the loop writes out what was read and asks a worker for more once the client took
+ * it. Size the workers for the bodies waiting on the origin at the same time, not for connections.
+ */
+public class NioProxyServer {
+    private static final Logger logger = Logger.getLogger("NioProxyServer");
+
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+
+    private final RequestHandler handler;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+
+    public NioProxyServer(RequestHandler handler, int loopCount, int workerCount) {
+        this.handler = handler;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+        int threadCount = Math.max(1, workerCount);
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(threadCount, threadCount,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        // sized for the busiest moment, a quiet server keeps none of them
+        workers.allowCoreThreadTimeOut(true);
+        this.workers = workers;
+    }
+
+    public void start(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop();
+                loops[i].start("NioProxyServer-loop-" + i);
+            }
+        } catch (IOException e) {
+            CloseUtil.close(serverChannel);
+            shutdownLoops();
+            throw e;
+        }
+
+        final EventLoop acceptLoop = loops[0];
+        acceptLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    serverChannel.register(acceptLoop.getSelector(), SelectionKey.OP_ACCEPT, new EventLoop.SelectHandler() {
+                        @Override
+                        public void onSelected(SelectionKey key) {
+                            accept();
+                        }
+                    });
+                } catch (IOException e) {
+                    if (Constant.enableLog) {
+                        logger.log(Level.SEVERE, "register server channel error ", e);
+                    }
+                }
+            }
+        });
+    }
+
+    private void accept() {
+        SocketChannel channel;
+        try {
+            while ((channel = serverChannel.accept()) != null) {
+                channel.socket().setKeepAlive(true);
+                channel.socket().setTcpNoDelay(true);
+                EventLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+                final NioConnection connection = new NioConnection(channel, loop, workers, handler);
+                final SocketChannel acceptedChannel = channel;
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            connection.register();
+                        } catch (IOException e) {
+                            NioConnection.closeQuietly(acceptedChannel, e);
+                        }
+                    }
+                });
+            }
+        } catch (IOException e) {
+            if (Constant.enableLog) {
+                logger.log(Level.WARNING, "Exception accepting connection", e);
+            }
+        }
+    }
+
+    public void stop() {
+        CloseUtil.close(serverChannel);
+        shutdownLoops();
+        workers.shutdownNow();
+    }
+
+    private void shutdownLoops() {
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    public interface RequestHandler {
+        HttpResponse handle(HttpRequest request);
+    }
+}
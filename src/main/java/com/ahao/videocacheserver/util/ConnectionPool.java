@@ -0,0 +1,442 @@
+package com.ahao.videocacheserver.util;
+
+import com.ahao.videocacheserver.HttpResponse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keep-alive connections to origin servers, pooled per host:port. A connection goes back to the pool
+ * when its response body has been read to the end of its Content-Length, so the body stream handed
+ * out with a response is what releases the connection.
+ */
+public class ConnectionPool {
+    private static final ConnectionPool DEFAULT = new ConnectionPool(
+            Constant.POOL_MAX_IDLE_PER_HOST, Constant.POOL_MAX_TOTAL_PER_HOST, Constant.POOL_KEEP_ALIVE_MILLIS);
+
+    private static final int DRAIN_LIMIT = 8 * 1024;
+
+    private final int maxIdlePerHost;
+    private final int maxTotalPerHost;
+    private final long keepAliveMillis;
+
+    private final Map<String, Deque<Connection>> idleConnections = new HashMap<>();
+    private final Map<String, Integer> totalConnections = new HashMap<>();
+
+    public ConnectionPool(int maxIdlePerHost, int maxTotalPerHost, long keepAliveMillis) {
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.maxTotalPerHost = maxTotalPerHost;
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    public static ConnectionPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * A healthy idle connection to {@code host:port}, or a new one. Past {@code maxTotalPerHost} open
+     * connections to the host a new one is not pooled, it is closed once its response is read, so a
+     * burst of viewers costs extra handshakes instead of waiting for a connection.
+     */
+    public Connection acquire(String host, int port) throws IOException {
+        String key = host + ":" + port;
+        Connection idle;
+        while ((idle = pollIdle(key)) != null) {
+            // the probe blocks for a moment, other hosts and threads do not wait for it
+            if (idle.isHealthy(keepAliveMillis)) {
+                idle.isReused = true;
+                return idle;
+            }
+            discard(idle);
+        }
+        boolean isPooled;
+        synchronized (this) {
+            Integer total = totalConnections.get(key);
+            isPooled = total == null || total < maxTotalPerHost;
+            if (isPooled) {
+                totalConnections.put(key, total == null ? 1 : total + 1);
+            }
+        }
+        try {
+            return new Connection(key, new Socket(host, port), isPooled);
+        } catch (IOException e) {
+            if (isPooled) {
+                onClosed(key);
+            }
+            throw e;
+        }
+    }
+
+    private synchronized Connection pollIdle(String key) {
+        Deque<Connection> idle = idleConnections.get(key);
+        if (idle == null) {
+            return null;
+        }
+        Connection connection = idle.pollFirst();
+        if (idle.isEmpty()) {
+            idleConnections.remove(key);
+        }
+        return connection;
+    }
+
+    void release(Connection connection) {
+        if (connection.isPooled) {
+            synchronized (this) {
+                if (!connection.socket.isClosed()) {
+                    Deque<Connection> idle = idleConnections.get(connection.key);
+                    if (idle == null) {
+                        idle = new ArrayDeque<>();
+                        idleConnections.put(connection.key, idle);
+                    }
+                    evictExpired(idle);
+                    if (idle.size() < maxIdlePerHost) {
+                        connection.idleSince = System.currentTimeMillis();
+                        idle.addFirst(connection);
+                        return;
+                    }
+                }
+            }
+        }
+        discard(connection);
+    }
+
+    public void discard(Connection connection) {
+        connection.closeSocket();
+        if (connection.isPooled) {
+            onClosed(connection.key);
+        }
+    }
+
+    private synchronized void onClosed(String key) {
+        decrementTotal(key);
+    }
+
+    private void decrementTotal(String key) {
+        Integer total = totalConnections.get(key);
+        if (total == null || total <= 1) {
+            totalConnections.remove(key);
+        } else {
+            totalConnections.put(key, total - 1);
+        }
+    }
+
+    private void evictExpired(Deque<Connection> idle) {
+        long now = System.currentTimeMillis();
+        Iterator<Connection> iterator = idle.iterator();
+        while (iterator.hasNext()) {
+            Connection connection = iterator.next();
+            if (now - connection.idleSince > keepAliveMillis) {
+                iterator.remove();
+                connection.closeSocket();
+                decrementTotal(connection.key);
+            }
+        }
+    }
+
+    /**
+     * Closes the connection under a body stream from another thread, to unblock a read that is waiting
+     * on the origin. Does nothing once the connection has gone back to the pool.
+     */
+    public static void abort(InputStream body) {
+        if (body instanceof BodyInputStream) {
+            ((BodyInputStream) body).discardConnection();
+        } else {
+            CloseUtil.close(body);
+        }
+    }
+
+    /**
+     * Wraps the body of {@code response} read from {@code connection}. The connection is released
+     * once the body is fully read; closing the stream early drains a small remainder and otherwise
+     * closes the connection. A chunked body is decoded, so the response loses its Transfer-Encoding.
+     */
+    public InputStream newBodyStream(Connection connection, HttpResponse response, boolean isHeadRequest) {
+        int status = response.getStatusCode();
+        if (isHeadRequest || status / 100 == 1 || status == 204 || status == 304) {
+            return new BodyInputStream(connection, 0, isKeepAlive(response));
+        }
+        String transferEncoding = response.getHeaders().get(Constant.TRANSFER_ENCODING);
+        if (transferEncoding != null) {
+            if (!transferEncoding.toLowerCase().contains("chunked")) {
+                return new BodyInputStream(connection, -1, false);
+            }
+            response.getHeaders().remove(Constant.TRANSFER_ENCODING);
+            return new BodyInputStream(connection, -1, isKeepAlive(response), true);
+        }
+        String contentLength = response.getHeaders().get(Constant.CONTENT_LENGTH);
+        if (contentLength == null) {
+            return new BodyInputStream(connection, -1, false);
+        }
+        try {
+            return new BodyInputStream(connection, Long.parseLong(contentLength.trim()), isKeepAlive(response));
+        } catch (NumberFormatException e) {
+            return new BodyInputStream(connection, -1, false);
+        }
+    }
+
+    private static boolean isKeepAlive(HttpResponse response) {
+        String connection = response.getHeaders().get(Constant.CONNECTION);
+        if (connection != null) {
+            return !"close".equalsIgnoreCase(connection.trim());
+        }
+        return Constant.HTTP_VERSION_1_1.equalsIgnoreCase(response.getProtocol());
+    }
+
+    public static class Connection {
+        private final String key;
+        private final Socket socket;
+        private final InputStream inputStream;
+        private final OutputStream outputStream;
+        // counted against the cap of its host, only these go back to the pool
+        private final boolean isPooled;
+        private long idleSince;
+        private boolean isReused = false;
+
+        private Connection(String key, Socket socket, boolean isPooled) throws IOException {
+            this.key = key;
+            this.socket = socket;
+            this.isPooled = isPooled;
+            this.inputStream = new BufferedInputStream(socket.getInputStream());
+            this.outputStream = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        public Socket getSocket() {
+            return socket;
+        }
+
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+
+        public OutputStream getOutputStream() {
+            return outputStream;
+        }
+
+        /**
+         * Whether this connection came out of the pool, so a failure on it may just mean the origin
+         * closed it while idle and the request can be retried on a new one.
+         */
+        public boolean isReused() {
+            return isReused;
+        }
+
+        private boolean isHealthy(long keepAliveMillis) {
+            if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+                return false;
+            }
+            if (System.currentTimeMillis() - idleSince > keepAliveMillis) {
+                return false;
+            }
+            int soTimeout = 0;
+            try {
+                if (inputStream.available() > 0) {
+                    return false;
+                }
+                soTimeout = socket.getSoTimeout();
+                socket.setSoTimeout(1);
+                inputStream.mark(1);
+                if (inputStream.read() == -1) {
+                    return false;
+                }
+                inputStream.reset();
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } catch (IOException e) {
+                return false;
+            } finally {
+                try {
+                    socket.setSoTimeout(soTimeout);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void closeSocket() {
+            CloseUtil.close(socket);
+        }
+    }
+
+    private class BodyInputStream extends InputStream {
+        private final Connection connection;
+        private final boolean isReusable;
+        private final boolean isChunked;
+        private long remaining;
+        private boolean isFirstChunk = true;
+        private boolean isReleased = false;
+
+        private BodyInputStream(Connection connection, long length, boolean isReusable) {
+            this(connection, length, isReusable, false);
+        }
+
+        /**
+         * @param length    body length, -1 if the body ends when the origin closes the connection
+         * @param isChunked whether the body is chunked, it is decoded and ends at the last chunk
+         */
+        private BodyInputStream(Connection connection, long length, boolean isReusable, boolean isChunked) {
+            this.connection = connection;
+            this.isChunked = isChunked;
+            this.remaining = isChunked ? 0 : length;
+            this.isReusable = isReusable && (length >= 0 || isChunked);
+            if (length == 0 && !isChunked) {
+                done();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (isReleased()) {
+                return -1;
+            }
+            if (isChunked && remaining == 0 && !nextChunk()) {
+                return -1;
+            }
+            if (remaining == 0) {
+                return -1;
+            }
+            if (remaining > 0) {
+                len = (int) Math.min(len, remaining);
+            }
+            int read = connection.inputStream.read(b, off, len);
+            if (read == -1) {
+                if (remaining > 0) {
+                    remaining = 0;
+                    discardConnection();
+                    throw new IOException("unexpected end of stream from " + connection.key);
+                }
+                done();
+                return -1;
+            }
+            if (remaining > 0) {
+                remaining -= read;
+                if (remaining == 0 && !isChunked) {
+                    done();
+                }
+            }
+            return read;
+        }
+
+        /**
+         * Reads the next chunk size line, returns false after the last chunk and its trailers.
+         */
+        private boolean nextChunk() throws IOException {
+            if (!isFirstChunk) {
+                readLine();
+            }
+            isFirstChunk = false;
+            String line = readLine();
+            int extension = line.indexOf(';');
+            long size;
+            try {
+                size = Long.parseLong((extension == -1 ? line : line.substring(0, extension)).trim(), 16);
+            } catch (NumberFormatException e) {
+                discardConnection();
+                throw new IOException("bad chunk size from " + connection.key + " : " + line);
+            }
+            if (size > 0) {
+                remaining = size;
+                return true;
+            }
+            while (!readLine().isEmpty()) {
+                // trailers are dropped
+            }
+            done();
+            return false;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = connection.inputStream.read()) != '\n') {
+                if (c == -1) {
+                    discardConnection();
+                    throw new IOException("unexpected end of chunked stream from " + connection.key);
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (isReleased() || remaining == 0) {
+                return 0;
+            }
+            int available = connection.inputStream.available();
+            return remaining > 0 ? (int) Math.min(available, remaining) : available;
+        }
+
+        @Override
+        public void close() {
+            if (isReleased()) {
+                return;
+            }
+            if (isReusable && (isChunked || remaining <= DRAIN_LIMIT)) {
+                try {
+                    byte[] buf = new byte[4096];
+                    long drained = 0;
+                    while (drained <= DRAIN_LIMIT && !isReleased()) {
+                        int read = read(buf, 0, buf.length);
+                        if (read == -1) {
+                            break;
+                        }
+                        drained += read;
+                    }
+                    if (isReleased()) {
+                        return;
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+            discardConnection();
+        }
+
+        private void done() {
+            if (!markReleased()) {
+                return;
+            }
+            if (isReusable) {
+                release(connection);
+            } else {
+                discard(connection);
+            }
+        }
+
+        private void discardConnection() {
+            if (markReleased()) {
+                discard(connection);
+            }
+        }
+
+        private synchronized boolean isReleased() {
+            return isReleased;
+        }
+
+        private synchronized boolean markReleased() {
+            if (isReleased) {
+                return false;
+            }
+            isReleased = true;
+            return true;
+        }
+    }
+}
@@ -9,6 +9,10 @@ public class Constant {
     public static final String CONTENT_LENGTH = "Content-Length";
     public static final String CONTENT_TYPE = "Content-Type";
     public static final String ACCEPT_RANGES = "Accept-Ranges";
+    public static final String TRANSFER_ENCODING = "Transfer-Encoding";
+    public static final String KEEP_ALIVE = "Keep-Alive";
+    public static final String ETAG = "ETag";
+    public static final String LAST_MODIFIED = "Last-Modified";
     public static final String Partial_Content = "Partial Content";
     public static final String OK = "OK";
     public static final String HOST_PORT = "RealHostPort";
@@ -20,8 +24,33 @@ public class Constant {
     public static final String LOCATION = "Location";
     public static final String REFERER = "Referer";
     public static final String METHOD_GET = "GET";
+    public static final String METHOD_HEAD = "HEAD";
 
     public static boolean enableLog = false;
+    public static boolean enableZeroCopy = true;
+
+    public static final int NIO_LOOP_COUNT = 2;
+    // a worker is held while a response body waits for the origin or a download, so this is the
+    // number of such bodies served at once; connections waiting on their player hold none
+    public static final int NIO_WORKER_COUNT = 64;
+
+    public static final int WRITER_THREAD_COUNT = 4;
+    public static final int WRITER_COUNT_PER_HOST = 2;
+
+    public static final int HEADER_CACHE_SIZE = 256;
+
+    public static final int CLIENT_IDLE_TIMEOUT_MILLIS = 15 * 1000;
+
+    public static final int POOL_MAX_IDLE_PER_HOST = 4;
+    public static final int POOL_MAX_TOTAL_PER_HOST = 8;
+    public static final long POOL_KEEP_ALIVE_MILLIS = 30 * 1000;
+
+    public static final long COMPACT_IDLE_MILLIS = 5 * 1000;
+    public static final int COMPACT_BYTES_PER_SECOND = 1024 * 1024 * 4;
+    public static final long COMPACT_DELETE_DELAY_MILLIS = 60 * 1000;
+
+    public static final int MEMORY_CACHE_WINDOW = 1024 * 1024 * 4;
+    public static final int MEMORY_CACHE_PROMOTE_HITS = 2;
 
     public static final int CACHE_SLICE_5MB = 1024 * 1024 * 5;
     public static final int CACHE_SLICE_10MB = 1024 * 1024 * 10;
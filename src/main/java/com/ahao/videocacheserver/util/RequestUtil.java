@@ -5,17 +5,15 @@ import com.ahao.videocacheserver.HttpRequest;
 import com.ahao.videocacheserver.HttpResponse;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.Socket;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class RequestUtil {
     public static HttpResponse getHttpResponseFromNet(HttpRequest request) {
-        Socket socket;
         HttpResponse response = null;
         HttpRequest re = request;
         boolean redirect;
@@ -26,35 +24,37 @@ public class RequestUtil {
                     port = Integer.parseInt(re.getHeaders().get(Constant.HOST_PORT));
                 } catch (Exception ignored) {
                 }
-                socket = new Socket(re.getHost(), port);
-                InputStream inputStream = socket.getInputStream();
-                OutputStream outputStream = socket.getOutputStream();
-                outputStream.write(re.getHeadText().getBytes(StandardCharsets.UTF_8));
-                outputStream.flush();
-                response = HttpResponse.parse(inputStream);
-                response.setSocket(socket);
+                response = execute(re, port);
 
                 redirect = response.getStatusCode() == 301 || response.getStatusCode() == 302 || response.getStatusCode() == 303;
 
                 if (redirect) {
                     String location = response.getHeaders().get(Constant.LOCATION);
-                    if (!StringUtil.isEmpty(location)) {
-                        URL url = new URL(location);
-                        re = new HttpRequest();
-                        re.setMethod(Constant.METHOD_GET);
-                        re.setProtocol(Constant.HTTP_VERSION_1_1);
-                        re.setUrl(url.getPath());
-                        re.setHost(url.getHost());
-                        int redirectPort = url.getPort();
-                        if (redirectPort == -1) {
-                            redirectPort = 80;
-                        }
-                        re.getHeaders().put(Constant.HOST_PORT, String.valueOf(redirectPort));
+                    if (StringUtil.isEmpty(location)) {
+                        break;
+                    }
+                    URL url = new URL(location);
+                    re = new HttpRequest();
+                    re.setMethod(Constant.METHOD_GET);
+                    re.setProtocol(Constant.HTTP_VERSION_1_1);
+                    re.setUrl(url.getPath());
+                    re.setHost(url.getHost());
+                    int redirectPort = url.getPort();
+                    if (redirectPort == -1) {
+                        redirectPort = 80;
+                    }
+                    re.getHeaders().put(Constant.HOST_PORT, String.valueOf(redirectPort));
+                    re.getHeaders().put(Constant.HOST, url.getHost());
+                    re.getHeaders().put(Constant.CONNECTION, "keep-alive");
+                    String range = request.getHeaders().get(Constant.RANGE);
+                    if (range != null) {
+                        re.getHeaders().put(Constant.RANGE, range);
                     }
-                    socket.close();
+                    CloseUtil.close(response.getContent());
                 }
             } catch (IOException e) {
                 e.printStackTrace();
+                response = null;
                 break;
             }
 
@@ -63,6 +63,77 @@ public class RequestUtil {
         return response;
     }
 
+    /**
+     * Sends {@code request} on a pooled connection. The response content owns the connection and
+     * returns it to the pool once the body is read. A pooled connection the origin has closed while
+     * idle fails on first use, the request is then sent once more on a new connection.
+     */
+    private static HttpResponse execute(HttpRequest request, int port) throws IOException {
+        ConnectionPool pool = ConnectionPool.getDefault();
+        while (true) {
+            ConnectionPool.Connection connection = pool.acquire(request.getHost(), port);
+            try {
+                OutputStream outputStream = connection.getOutputStream();
+                outputStream.write(request.getHeadText().getBytes(StandardCharsets.UTF_8));
+                outputStream.flush();
+                HttpResponse response = HttpResponse.parse(connection.getInputStream());
+                if (response.getStatusCode() == 0) {
+                    throw new IOException("no response from " + request.getHost() + ":" + port);
+                }
+                boolean isHead = Constant.METHOD_HEAD.equalsIgnoreCase(request.getMethod());
+                response.setContent(pool.newBodyStream(connection, response, isHead));
+                return response;
+            } catch (IOException e) {
+                pool.discard(connection);
+                if (!connection.isReused()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the client asked to keep its connection open after the response, read before the
+     * interceptors rewrite the request headers for the origin.
+     */
+    public static boolean isKeepAlive(HttpRequest request) {
+        if (request.getMethod() == null) {
+            return false;
+        }
+        String connection = request.getHeaders().get(Constant.CONNECTION);
+        if (connection != null) {
+            return !"close".equalsIgnoreCase(connection.trim());
+        }
+        return Constant.HTTP_VERSION_1_1.equalsIgnoreCase(request.getProtocol());
+    }
+
+    /**
+     * Sets the framing headers of a response to the client. The connection only stays open when the
+     * client wants it and the end of the body is known from its Content-Length, returns whether it does.
+     */
+    public static boolean prepareKeepAlive(HttpResponse response, boolean isKeepAlive) {
+        Map<String, String> headers = response.getHeaders();
+        if (response.getContent() == null) {
+            headers.remove(Constant.CONTENT_LENGTH);
+            headers.put(Constant.CONTENT_LENGTH, "0");
+        }
+        isKeepAlive = isKeepAlive && headers.get(Constant.CONTENT_LENGTH) != null
+                && headers.get(Constant.TRANSFER_ENCODING) == null;
+        headers.remove(Constant.CONNECTION);
+        headers.remove(Constant.KEEP_ALIVE);
+        headers.put(Constant.CONNECTION, isKeepAlive ? "keep-alive" : "close");
+        return isKeepAlive;
+    }
+
+    public static long getContentLength(HttpResponse response) {
+        String contentLength = response.getHeaders().get(Constant.CONTENT_LENGTH);
+        try {
+            return contentLength == null ? -1 : Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     public static String getRealHostNameWithPort(HttpRequest request) {
         String url = request.getUrl();
         Matcher matcher = Pattern.compile(Constant.REAL_HOST_NAME + "=([^&]*)").matcher(url);
@@ -0,0 +1,189 @@
+package com.ahao.videocacheserver.cache;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.ahao.videocacheserver.cache.StubOrigin.content;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class DiskLruCacheTest {
+    private static final String HOST = "127.0.0.1";
+    private static final int SLICE = 1024;
+    // past the range of an int, the sparse file is mostly a hole
+    private static final long FAR_OFFSET = 3L << 30;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DiskLruCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new DiskLruCache(folder.newFolder("cache").getPath(), 3 * SLICE, SLICE);
+    }
+
+    @Test
+    public void evictsLeastRecentlyAddedSliceWhenFull() {
+        put(cache, "/0.mp4", 0, SLICE - 1);
+        put(cache, "/1.mp4", 0, SLICE - 1);
+        put(cache, "/2.mp4", 0, SLICE - 1);
+
+        put(cache, "/3.mp4", 0, SLICE - 1);
+
+        assertFalse(isCached("/0.mp4"));
+        assertTrue(isCached("/1.mp4"));
+        assertTrue(isCached("/2.mp4"));
+        assertTrue(isCached("/3.mp4"));
+    }
+
+    @Test
+    public void lookupMakesSliceRecentlyUsed() {
+        put(cache, "/0.mp4", 0, SLICE - 1);
+        put(cache, "/1.mp4", 0, SLICE - 1);
+        put(cache, "/2.mp4", 0, SLICE - 1);
+        assertNotNull(cache.get(new SegmentInfo(HOST, "/0.mp4", 0, SLICE - 1)));
+
+        put(cache, "/3.mp4", 0, SLICE - 1);
+
+        assertTrue(isCached("/0.mp4"));
+        assertFalse(isCached("/1.mp4"));
+        assertTrue(isCached("/2.mp4"));
+        assertTrue(isCached("/3.mp4"));
+    }
+
+    @Test(timeout = 10000)
+    public void pausedViewersDoNotHoldBackAnotherMiss() throws Exception {
+        DiskLruCache cache = new DiskLruCache(folder.newFolder("paused").getPath(), 64 * SLICE, SLICE);
+        List<LiveDownload.Reader> pausedReaders = new ArrayList<>();
+        try {
+            // more viewers than the writers a host may have, none of them reads
+            for (int i = 0; i < 2; i++) {
+                pausedReaders.add(startDownload(cache, "/paused" + i + ".mp4", 8 * SLICE));
+            }
+
+            LiveDownload.Reader reader = startDownload(cache, "/miss.mp4", 8 * SLICE);
+
+            byte[] bytes = new byte[8 * SLICE];
+            InputStream in = new FilesDataStream(reader, reader.getStartOffset(), bytes.length);
+            try {
+                int read = 0;
+                while (read < bytes.length) {
+                    int n = in.read(bytes, read, bytes.length - read);
+                    assertTrue(n > 0);
+                    read += n;
+                }
+            } finally {
+                in.close();
+            }
+            assertArrayEquals(content(0, bytes.length), bytes);
+        } finally {
+            for (LiveDownload.Reader pausedReader : pausedReaders) {
+                pausedReader.close();
+            }
+        }
+    }
+
+    private static LiveDownload.Reader startDownload(DiskLruCache cache, String url, int length) {
+        SegmentInfo range = new SegmentInfo(HOST, url, 0, length - 1);
+        LiveDownload download = cache.reserve(range);
+        assertNotNull(download);
+        LiveDownload.Reader reader = cache.attach(range);
+        assertNotNull(reader);
+        cache.put(download, new ByteArrayInputStream(content(0, length)), null);
+        return reader;
+    }
+
+    @Test
+    public void readsRangesPastTwoGigabytesFromSliceFiles() throws Exception {
+        readsRangesPastTwoGigabytes(StorageFormat.SLICE_FILES);
+    }
+
+    @Test
+    public void readsRangesPastTwoGigabytesFromSparseFile() throws Exception {
+        readsRangesPastTwoGigabytes(StorageFormat.SPARSE_FILE);
+    }
+
+    private void readsRangesPastTwoGigabytes(StorageFormat format) throws Exception {
+        DiskLruCache cache = new DiskLruCache(folder.newFolder(format.name()).getPath(), 16 * SLICE, SLICE, format);
+        put(cache, "/far.mp4", FAR_OFFSET, FAR_OFFSET + 2 * SLICE - 1);
+
+        long start = FAR_OFFSET + SLICE - 100;
+        long end = FAR_OFFSET + SLICE + 99;
+        assertArrayEquals(content(start, 200), read(cache, new SegmentInfo(HOST, "/far.mp4", start, end)));
+        assertArrayEquals(content(FAR_OFFSET, 2 * SLICE),
+                read(cache, new SegmentInfo(HOST, "/far.mp4", FAR_OFFSET, FAR_OFFSET + 2 * SLICE - 1)));
+    }
+
+    @Test
+    public void seekInSparseFileEvictsOnlyWhatTheSliceNeeds() throws Exception {
+        DiskLruCache cache = new DiskLruCache(folder.newFolder("sparse").getPath(), 10 * SLICE, SLICE,
+                StorageFormat.SPARSE_FILE);
+        for (int i = 0; i < 9; i++) {
+            put(cache, "/" + i + ".mp4", 0, SLICE - 1);
+        }
+
+        put(cache, "/big.mp4", 50 * SLICE, 51 * SLICE - 1);
+
+        int cached = 0;
+        for (int i = 0; i < 9; i++) {
+            if (cache.contains(new SegmentInfo(HOST, "/" + i + ".mp4", 0, SLICE - 1))) {
+                cached++;
+            }
+        }
+        assertEquals(9, cached);
+        assertArrayEquals(content(50 * SLICE, SLICE),
+                read(cache, new SegmentInfo(HOST, "/big.mp4", 50 * SLICE, 51 * SLICE - 1)));
+
+        put(cache, "/big.mp4", 60 * SLICE, 61 * SLICE - 1);
+
+        assertFalse(cache.contains(new SegmentInfo(HOST, "/0.mp4", 0, SLICE - 1)));
+        assertTrue(cache.contains(new SegmentInfo(HOST, "/1.mp4", 0, SLICE - 1)));
+        assertTrue(cache.contains(new SegmentInfo(HOST, "/big.mp4", 60 * SLICE, 61 * SLICE - 1)));
+    }
+
+    static byte[] read(DiskLruCache cache, SegmentInfo range) throws IOException {
+        List<DiskLruCache.CacheResult> results = cache.get(range);
+        assertNotNull(results);
+        List<CacheSlice> slices = new ArrayList<>();
+        for (DiskLruCache.CacheResult result : results) {
+            assertTrue(result.isCached());
+            slices.add(result.getSlice());
+        }
+        byte[] bytes = new byte[(int) range.getLength()];
+        InputStream in = new FilesDataStream(new CommonListFile(slices), results.get(0).getStartBytes(), range.getLength());
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                assertTrue("cached range ended at " + read, n > 0);
+                read += n;
+            }
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private boolean isCached(String url) {
+        return cache.contains(new SegmentInfo(HOST, url, 0, SLICE - 1));
+    }
+
+    static void put(DiskLruCache cache, String url, long start, long end) {
+        LiveDownload download = cache.reserve(new SegmentInfo(HOST, url, start, end));
+        assertNotNull(download);
+        cache.write(download, new ByteArrayInputStream(content(start, (int) (end - start + 1))), null);
+    }
+}
@@ -0,0 +1,96 @@
+package com.ahao.videocacheserver.cache;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LiveDownloadTest {
+    private static final int SLICE = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<CacheSlice> slices;
+    private LiveDownload download;
+
+    @Before
+    public void setUp() {
+        slices = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            SegmentInfo key = new SegmentInfo("127.0.0.1", "/video.mp4", i * SLICE, (i + 1) * SLICE - 1);
+            slices.add(new CacheSlice(new File(folder.getRoot(), key.getStartByte() + "_" + key.getEndByte()), key));
+        }
+        download = new LiveDownload(slices);
+    }
+
+    @Test
+    public void interruptedWriterCancelsDownload() throws Exception {
+        // the reader stays before the first slice, the writer waits once it is two slices ahead
+        download.newReader(0);
+        final AtomicBoolean isInterrupted = new AtomicBoolean();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 3; i++) {
+                    download.publish(slices.get(i));
+                }
+                isInterrupted.set(Thread.currentThread().isInterrupted());
+            }
+        });
+        writer.start();
+        awaitWaiting(writer);
+
+        writer.interrupt();
+        writer.join(5000);
+
+        assertFalse(writer.isAlive());
+        assertTrue(isInterrupted.get());
+        assertTrue(download.isCancelled());
+    }
+
+    @Test
+    public void interruptedReaderFailsWithInterruptedIOException() throws Exception {
+        final LiveDownload.Reader reader = download.newReader(0);
+        final AtomicBoolean isFailed = new AtomicBoolean();
+        final AtomicBoolean isInterrupted = new AtomicBoolean();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reader.consume();
+                } catch (InterruptedIOException e) {
+                    isFailed.set(true);
+                    isInterrupted.set(Thread.currentThread().isInterrupted());
+                } catch (Exception ignored) {
+                }
+            }
+        });
+        thread.start();
+        awaitWaiting(thread);
+
+        thread.interrupt();
+        thread.join(5000);
+
+        assertFalse(thread.isAlive());
+        assertTrue(isFailed.get());
+        assertTrue(isInterrupted.get());
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(thread.getState() == Thread.State.WAITING);
+    }
+}
@@ -0,0 +1,74 @@
+package com.ahao.videocacheserver.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PlaylistPrefetcherTest {
+    private static final String HOST = "127.0.0.1";
+    private static final String PLAYLIST = "/live/index.m3u8";
+    private static final int SEGMENT_LENGTH = 3000;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubOrigin origin;
+    private DiskLruCache cache;
+    private PlaylistPrefetcher prefetcher;
+
+    @Before
+    public void setUp() throws Exception {
+        origin = new StubOrigin();
+        for (int i = 0; i < 4; i++) {
+            origin.addFile(segment(i), SEGMENT_LENGTH);
+        }
+        cache = new DiskLruCache(folder.newFolder("cache").getPath(), 1024 * 1024, 1024);
+        cache.setPlaylistPrefetchSegments(2);
+        prefetcher = cache.getPlaylistPrefetcher();
+    }
+
+    @After
+    public void tearDown() {
+        cache.setPlaylistPrefetchSegments(0);
+        origin.close();
+    }
+
+    @Test
+    public void segmentRequestWarmsNextSegments() throws Exception {
+        prefetcher.onPlaylist(origin.newRequest(PLAYLIST), Arrays.asList("seg0.ts", "seg1.ts", "seg2.ts", "seg3.ts"));
+
+        prefetcher.onSegmentRequest(HOST, segment(0));
+
+        PlaylistStats stats = prefetcher.getStats().get(HOST + PLAYLIST);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (stats.getPrefetchedSegments() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, stats.getPrefetchedSegments());
+        assertTrue(origin.getRequests().contains(segment(1) + " -"));
+        assertTrue(origin.getRequests().contains(segment(2) + " -"));
+        assertEquals(2, origin.getRequests().size());
+        assertArrayEquals(StubOrigin.content(0, SEGMENT_LENGTH),
+                DiskLruCacheTest.read(cache, new SegmentInfo(HOST, segment(1), 0, SEGMENT_LENGTH - 1)));
+        assertFalse(cache.contains(new SegmentInfo(HOST, segment(3), 0, SEGMENT_LENGTH - 1)));
+
+        prefetcher.onSegmentRequest(HOST, segment(1));
+
+        assertEquals(1, stats.getPrefetchHits());
+        assertTrue(origin.awaitRequest(segment(3) + " -", TIMEOUT_MILLIS));
+    }
+
+    private static String segment(int index) {
+        return "/live/seg" + index + ".ts";
+    }
+}
@@ -0,0 +1,130 @@
+package com.ahao.videocacheserver.cache;
+
+import com.ahao.videocacheserver.HttpRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SlicePrefetcherTest {
+    private static final String HOST = "127.0.0.1";
+    private static final String URL = "/video.mp4";
+    private static final int SLICE = 1024;
+    private static final long LENGTH = 8 * SLICE;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubOrigin origin;
+    private DiskLruCache cache;
+    private SlicePrefetcher prefetcher;
+
+    @Before
+    public void setUp() throws Exception {
+        origin = new StubOrigin();
+        origin.addFile(URL, LENGTH);
+        cache = new DiskLruCache(folder.newFolder("cache").getPath(), 1024 * 1024, SLICE);
+        cache.setReadAheadSlices(2);
+        prefetcher = cache.getPrefetcher();
+    }
+
+    @After
+    public void tearDown() {
+        cache.setReadAheadSlices(0);
+        origin.close();
+    }
+
+    @Test
+    public void sequentialRequestReadsNextSliceAhead() throws Exception {
+        HttpRequest request = origin.newRequest(URL);
+        prefetcher.onRequest(request, range(0, SLICE - 1), LENGTH);
+        assertTrue(origin.getRequests().isEmpty());
+
+        prefetcher.onRequest(request, range(SLICE, 2 * SLICE - 1), LENGTH);
+
+        assertTrue(origin.awaitRequest(URL + " bytes=2048-3071", TIMEOUT_MILLIS));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (cache.getStats().getPrefetchedBytes() < SLICE && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(SLICE, cache.getStats().getPrefetchedBytes());
+        assertArrayEquals(StubOrigin.content(2 * SLICE, SLICE),
+                DiskLruCacheTest.read(cache, range(2 * SLICE, 3 * SLICE - 1)));
+        assertFalse(cache.contains(range(3 * SLICE, 4 * SLICE - 1)));
+    }
+
+    @Test
+    public void seekCancelsReadAhead() throws Exception {
+        origin.stall(URL + " bytes=2048-3071");
+        HttpRequest request = origin.newRequest(URL);
+        prefetcher.onRequest(request, range(0, SLICE - 1), LENGTH);
+        prefetcher.onRequest(request, range(SLICE, 2 * SLICE - 1), LENGTH);
+        assertTrue(origin.awaitRequest(URL + " bytes=2048-3071", TIMEOUT_MILLIS));
+
+        prefetcher.onRequest(request, range(6 * SLICE, LENGTH - 1), LENGTH);
+
+        assertEquals(1, cache.getStats().getCancelledPrefetches());
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (cache.contains(range(2 * SLICE, 3 * SLICE - 1)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(cache.contains(range(2 * SLICE, 3 * SLICE - 1)));
+        assertEquals(1, origin.getRequests().size());
+    }
+
+    @Test(timeout = 20000)
+    public void pausedViewerDoesNotStallReadAheadOfOtherUrls() throws Exception {
+        // enough for the origin rate to be measured
+        int slice = 256 * 1024;
+        long length = 16L * slice;
+        origin.addFile("/a.mp4", length);
+        origin.addFile("/b.mp4", length);
+        // far slower than the viewer, so read-ahead asks for several slices in one download
+        origin.setChunkDelay(10);
+        DiskLruCache cache = new DiskLruCache(folder.newFolder("paused").getPath(), 64L * slice, slice);
+        cache.setReadAheadSlices(4);
+        LiveDownload.Reader paused = null;
+        try {
+            SlicePrefetcher prefetcher = cache.getPrefetcher();
+            SlicePrefetcher.Playback playback = prefetcher.onRequest(origin.newRequest("/a.mp4"),
+                    new SegmentInfo(HOST, "/a.mp4", 0, length - 1), length);
+            playback.onProgress(1);
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (cache.getStats().getPrefetchedBytes() < slice && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            playback.onProgress(slice);
+            Thread.sleep(2);
+            playback.onProgress(2L * slice);
+
+            // a viewer gets to the read-ahead of slices 3 to 6 and pauses there
+            SegmentInfo ahead = new SegmentInfo(HOST, "/a.mp4", 3L * slice, 7L * slice - 1);
+            assertTrue(origin.awaitRequest("/a.mp4 bytes=" + ahead.getStartByte() + "-" + ahead.getEndByte(),
+                    TIMEOUT_MILLIS));
+            paused = cache.attach(ahead);
+            assertTrue(paused != null);
+
+            HttpRequest request = origin.newRequest("/b.mp4");
+            prefetcher.onRequest(request, new SegmentInfo(HOST, "/b.mp4", 0, slice - 1), length);
+            prefetcher.onRequest(request, new SegmentInfo(HOST, "/b.mp4", slice, 2L * slice - 1), length);
+
+            assertTrue(origin.awaitRequest("/b.mp4 bytes=" + 2 * slice + "-" + (3 * slice - 1), 3 * TIMEOUT_MILLIS));
+        } finally {
+            if (paused != null) {
+                paused.close();
+            }
+            cache.setReadAheadSlices(0);
+        }
+    }
+
+    private static SegmentInfo range(long start, long end) {
+        return new SegmentInfo(HOST, URL, start, end);
+    }
+}
@@ -0,0 +1,238 @@
+package com.ahao.videocacheserver.cache;
+
+import com.ahao.videocacheserver.HttpRequest;
+import com.ahao.videocacheserver.util.CloseUtil;
+import com.ahao.videocacheserver.util.Constant;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * An origin on a local port for tests. It serves files of a given length whose bytes are
+ * {@link #content}, answers a Range with a 206 and keeps its connections open.
+ * Every request is recorded as its path and its Range header, {@code "-"} if it had none.
+ */
+public class StubOrigin implements Closeable {
+    private static final int CHUNK = 8 * 1024;
+
+    private final ServerSocket serverSocket;
+    private final Map<String, Long> lengths = new ConcurrentHashMap<>();
+    private final List<String> requests = new ArrayList<>();
+    private final Set<Socket> sockets = new HashSet<>();
+    private final CountDownLatch released = new CountDownLatch(1);
+    private volatile String stalledRequest;
+    private volatile long chunkDelayMillis;
+
+    public StubOrigin() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "StubOrigin-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public void addFile(String path, long length) {
+        lengths.put(path, length);
+    }
+
+    /**
+     * Sends only the first half of the body of {@code request}, a path and its range as recorded,
+     * and then holds the connection until the origin is closed.
+     */
+    public void stall(String request) {
+        stalledRequest = request;
+    }
+
+    /**
+     * Sleeps {@code millis} after each chunk of a body, an origin slower than its viewers.
+     */
+    public void setChunkDelay(long millis) {
+        chunkDelayMillis = millis;
+    }
+
+    /**
+     * A request of {@code url} from this origin, as the interceptors hand it to the cache.
+     */
+    public HttpRequest newRequest(String url) {
+        HttpRequest request = new HttpRequest();
+        request.setMethod(Constant.METHOD_GET);
+        request.setProtocol(Constant.HTTP_VERSION_1_1);
+        request.setUrl(url);
+        request.setHost("127.0.0.1");
+        request.getHeaders().put(Constant.HOST_PORT, String.valueOf(serverSocket.getLocalPort()));
+        request.getHeaders().put(Constant.HOST, "127.0.0.1");
+        return request;
+    }
+
+    public synchronized List<String> getRequests() {
+        return new ArrayList<>(requests);
+    }
+
+    /**
+     * Waits until {@code request} came in, returns false if it did not within {@code timeoutMillis}.
+     */
+    public synchronized boolean awaitRequest(String request, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!requests.contains(request)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    private synchronized void onRequest(String request) {
+        requests.add(request);
+        notifyAll();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            synchronized (sockets) {
+                sockets.add(socket);
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException | InterruptedException ignored) {
+                    } finally {
+                        CloseUtil.close(socket);
+                        synchronized (sockets) {
+                            sockets.remove(socket);
+                        }
+                    }
+                }
+            }, "StubOrigin-connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket socket) throws IOException, InterruptedException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        while (true) {
+            String requestLine = readLine(in);
+            if (requestLine == null) {
+                return;
+            }
+            String range = null;
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(Constant.RANGE)) {
+                    range = line.substring(colon + 1).trim();
+                }
+            }
+            String[] parts = requestLine.split(" ");
+            String path = parts.length > 1 ? parts[1] : "";
+            if (path.indexOf('?') != -1) {
+                path = path.substring(0, path.indexOf('?'));
+            }
+            String request = path + " " + (range == null ? "-" : range);
+            onRequest(request);
+
+            Long length = lengths.get(path);
+            if (length == null) {
+                out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                continue;
+            }
+            long start = 0;
+            long end = length - 1;
+            String head;
+            if (range != null && range.startsWith("bytes=")) {
+                String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                start = Long.parseLong(bounds[0]);
+                if (!bounds[1].isEmpty()) {
+                    end = Math.min(end, Long.parseLong(bounds[1]));
+                }
+                head = "HTTP/1.1 206 Partial Content\r\nContent-Range: bytes " + start + "-" + end + "/" + length + "\r\n";
+            } else {
+                head = "HTTP/1.1 200 OK\r\n";
+            }
+            head += "Content-Length: " + (end - start + 1) + "\r\nConnection: keep-alive\r\n\r\n";
+            out.write(head.getBytes(StandardCharsets.US_ASCII));
+
+            boolean isStalled = request.equals(stalledRequest);
+            long stop = isStalled ? start + (end - start + 1) / 2 : end + 1;
+            for (long position = start; position < stop; position += CHUNK) {
+                out.write(content(position, (int) Math.min(CHUNK, stop - position)));
+                if (chunkDelayMillis > 0) {
+                    out.flush();
+                    Thread.sleep(chunkDelayMillis);
+                }
+            }
+            out.flush();
+            if (isStalled) {
+                released.await();
+                return;
+            }
+        }
+    }
+
+    /**
+     * The bytes of a file from {@code start} on, each byte is its position modulo 251.
+     */
+    public static byte[] content(long start, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) ((start + i) % 251);
+        }
+        return bytes;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                return null;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public void close() {
+        released.countDown();
+        CloseUtil.close(serverSocket);
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                CloseUtil.close(socket);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.ahao.videocacheserver.interceptor;
+
+import com.ahao.videocacheserver.HttpRequest;
+import com.ahao.videocacheserver.HttpResponse;
+import com.ahao.videocacheserver.cache.DiskLruCache;
+import com.ahao.videocacheserver.cache.StubOrigin;
+import com.ahao.videocacheserver.util.CloseUtil;
+import com.ahao.videocacheserver.util.Constant;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CacheInterceptorTest {
+    private static final String URL = "/big.mp4";
+    private static final int SLICE = 1024;
+    // past what an int holds, as are the ranges asked for
+    private static final long LENGTH = 4L << 30;
+    private static final long START = 3L << 30;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubOrigin origin;
+    private DiskLruCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        origin = new StubOrigin();
+        origin.addFile(URL, LENGTH);
+        cache = new DiskLruCache(folder.newFolder("cache").getPath(), 64 * SLICE, SLICE);
+    }
+
+    @After
+    public void tearDown() {
+        origin.close();
+    }
+
+    @Test
+    public void servesRangePastTwoGigabytesFromOrigin() throws Exception {
+        HttpResponse response = proceed("bytes=" + START + "-" + (START + 2 * SLICE - 1));
+
+        assertEquals(206, response.getStatusCode());
+        assertEquals("bytes 3221225472-3221227519/4294967296", response.getHeaders().get(Constant.CONTENT_RANGE));
+        assertEquals("2048", response.getHeaders().get(Constant.CONTENT_LENGTH));
+        assertEquals(LENGTH, response.getTotalLength());
+        assertArrayEquals(StubOrigin.content(START, 2 * SLICE), readBody(response));
+        assertTrue(origin.getRequests().contains(URL + " bytes=0-0"));
+        assertTrue(origin.getRequests().contains(URL + " bytes=" + START + "-" + (START + 2 * SLICE - 1)));
+
+        // the cached headers and slices answer a range within them
+        int requests = origin.getRequests().size();
+        response = proceed("bytes=" + (START + 100) + "-" + (START + SLICE + 99));
+
+        assertEquals(206, response.getStatusCode());
+        assertEquals("bytes 3221225572-3221226595/4294967296", response.getHeaders().get(Constant.CONTENT_RANGE));
+        assertEquals("1024", response.getHeaders().get(Constant.CONTENT_LENGTH));
+        assertArrayEquals(StubOrigin.content(START + 100, SLICE), readBody(response));
+        assertEquals(requests, origin.getRequests().size());
+    }
+
+    @Test
+    public void servesOpenRangeToTheEndOfLargeFile() throws Exception {
+        long start = LENGTH - SLICE;
+        HttpResponse response = proceed("bytes=" + start + "-");
+
+        assertEquals(206, response.getStatusCode());
+        assertEquals("bytes 4294966272-4294967295/4294967296", response.getHeaders().get(Constant.CONTENT_RANGE));
+        assertEquals("1024", response.getHeaders().get(Constant.CONTENT_LENGTH));
+        assertEquals(LENGTH, response.getTotalLength());
+        assertArrayEquals(StubOrigin.content(start, SLICE), readBody(response));
+        assertTrue(origin.getRequests().contains(URL + " bytes=" + start + "-" + (LENGTH - 1)));
+    }
+
+    private HttpResponse proceed(String range) {
+        HttpRequest request = origin.newRequest(URL);
+        request.getHeaders().put(Constant.RANGE, range);
+        return new InterceptorChain(Arrays.<Interceptor>asList(new CacheInterceptor(cache), new ConnectInterceptor()),
+                request, 0).proceed(request);
+    }
+
+    private static byte[] readBody(HttpResponse response) throws IOException {
+        InputStream in = response.getContent();
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                body.write(buffer, 0, count);
+            }
+            return body.toByteArray();
+        } finally {
+            CloseUtil.close(in);
+        }
+    }
+}